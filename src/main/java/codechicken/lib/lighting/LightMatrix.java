@@ -6,13 +6,14 @@ import net.minecraft.world.IBlockAccess;
 
 import codechicken.lib.colour.ColourRGBA;
 import codechicken.lib.render.CCRenderState;
+import codechicken.lib.render.VertexBatch;
 import codechicken.lib.vec.BlockCoord;
 
 /**
  * Note that when using the class as a vertex transformer, the vertices are assumed to be within the BB (x, y, z) ->
  * (x+1, y+1, z+1)
  */
-public class LightMatrix implements CCRenderState.IVertexOperation {
+public class LightMatrix implements CCRenderState.IBatchVertexOperation {
 
     public static final int operationIndex = CCRenderState.registerOperation();
 
@@ -132,6 +133,19 @@ public class LightMatrix implements CCRenderState.IVertexOperation {
         state.setBrightness((int) (b[0] * lc.fa + b[1] * lc.fb + b[2] * lc.fc + b[3] * lc.fd) & 0xFF00FF);
     }
 
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        for (int i = 0; i < batch.count; i++) {
+            LC lc = batch.lc[i];
+            float[] a = ao(lc.side);
+            float f = (a[0] * lc.fa + a[1] * lc.fb + a[2] * lc.fc + a[3] * lc.fd);
+            int[] b = brightness(lc.side);
+            batch.colour[i] = ColourRGBA.multiplyC(batch.colour[i], f);
+            batch.brightness[i] = (int) (b[0] * lc.fa + b[1] * lc.fb + b[2] * lc.fc + b[3] * lc.fd) & 0xFF00FF;
+        }
+        state.hasColour = state.hasBrightness = true;
+    }
+
     @Override
     public int operationID() {
         return operationIndex;
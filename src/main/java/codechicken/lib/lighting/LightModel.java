@@ -1,10 +1,11 @@
 package codechicken.lib.lighting;
 
 import codechicken.lib.render.CCRenderState;
+import codechicken.lib.render.VertexBatch;
 import codechicken.lib.vec.Rotation;
 import codechicken.lib.vec.Vector3;
 
-public class LightModel implements CCRenderState.IVertexOperation {
+public class LightModel implements CCRenderState.IBatchVertexOperation {
 
     public static final int operationIndex = CCRenderState.registerOperation();
 
@@ -91,6 +92,14 @@ public class LightModel implements CCRenderState.IVertexOperation {
         state.setColour(apply(state.colour, state.normal));
     }
 
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        Vector3 normal = batch.vec;
+        for (int i = 0; i < batch.count; i++)
+            batch.colour[i] = apply(batch.colour[i], batch.getNormal(i, normal));
+        state.hasColour = true;
+    }
+
     @Override
     public int operationID() {
         return operationIndex;
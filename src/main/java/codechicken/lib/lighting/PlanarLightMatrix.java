@@ -4,6 +4,7 @@ import net.minecraft.block.Block;
 import net.minecraft.world.IBlockAccess;
 
 import codechicken.lib.render.CCRenderState;
+import codechicken.lib.render.VertexBatch;
 import codechicken.lib.vec.BlockCoord;
 
 public class PlanarLightMatrix extends PlanarLightModel {
@@ -50,6 +51,13 @@ public class PlanarLightMatrix extends PlanarLightModel {
         state.setBrightness(brightness(state.side));
     }
 
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        super.operateBatch(state, batch);
+        for (int i = 0; i < batch.count; i++) batch.brightness[i] = brightness(batch.side[i]);
+        state.hasBrightness = true;
+    }
+
     @Override
     public int operationID() {
         return operationIndex;
@@ -2,11 +2,12 @@ package codechicken.lib.lighting;
 
 import codechicken.lib.colour.ColourRGBA;
 import codechicken.lib.render.CCRenderState;
+import codechicken.lib.render.VertexBatch;
 
 /**
  * Faster precomputed version of LightModel that only works for axis planar sides
  */
-public class PlanarLightModel implements CCRenderState.IVertexOperation {
+public class PlanarLightModel implements CCRenderState.IBatchVertexOperation {
 
     public static PlanarLightModel standardLightModel = LightModel.standardLightModel.reducePlanar();
 
@@ -30,6 +31,13 @@ public class PlanarLightModel implements CCRenderState.IVertexOperation {
         state.setColour(ColourRGBA.multiply(state.colour, colours[state.side]));
     }
 
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        int[] colour = batch.colour;
+        for (int i = 0; i < batch.count; i++) colour[i] = ColourRGBA.multiply(colour[i], colours[batch.side[i]]);
+        state.hasColour = true;
+    }
+
     @Override
     public int operationID() {
         return LightModel.operationIndex;
@@ -4,12 +4,13 @@ import net.minecraft.block.Block;
 import net.minecraft.world.IBlockAccess;
 
 import codechicken.lib.render.CCRenderState;
+import codechicken.lib.render.VertexBatch;
 import codechicken.lib.vec.BlockCoord;
 
 /**
  * Faster precomputed version of LightModel that only works for axis planar sides
  */
-public class SimpleBrightnessModel implements CCRenderState.IVertexOperation {
+public class SimpleBrightnessModel implements CCRenderState.IBatchVertexOperation {
 
     public static final int operationIndex = CCRenderState.registerOperation();
     public static SimpleBrightnessModel instance = new SimpleBrightnessModel();
@@ -49,6 +50,12 @@ public class SimpleBrightnessModel implements CCRenderState.IVertexOperation {
         state.setBrightness(sample(state.side));
     }
 
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        for (int i = 0; i < batch.count; i++) batch.brightness[i] = sample(batch.side[i]);
+        state.hasBrightness = true;
+    }
+
     @Override
     public int operationID() {
         return operationIndex;
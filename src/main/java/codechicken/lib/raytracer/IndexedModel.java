@@ -0,0 +1,18 @@
+package codechicken.lib.raytracer;
+
+import codechicken.lib.render.CCModel;
+
+public class IndexedModel {
+
+    public Object data;
+    public ModelBVH bvh;
+
+    public IndexedModel(Object data, ModelBVH bvh) {
+        this.data = data;
+        this.bvh = bvh;
+    }
+
+    public IndexedModel(Object data, CCModel model) {
+        this(data, model.getBVH());
+    }
+}
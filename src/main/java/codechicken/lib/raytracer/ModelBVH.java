@@ -0,0 +1,381 @@
+package codechicken.lib.raytracer;
+
+import java.util.Arrays;
+
+import codechicken.lib.render.CCModel;
+import codechicken.lib.render.Vertex5;
+import codechicken.lib.vec.Cuboid6;
+import codechicken.lib.vec.Vector3;
+
+/**
+ * Bounding volume hierarchy over the triangles of a model, for precise ray tests against non cuboid shapes. Quads are
+ * split into two triangles. The tree is built with a binned surface area heuristic and stored in flat arrays, so
+ * {@link #trace} allocates nothing once its {@link Hit} has been used.
+ * <p>
+ * The BVH holds a copy of the model's positions and UVs at build time. Use {@link CCModel#getBVH()} for one that is
+ * rebuilt when the model's vertex array is replaced.
+ */
+public class ModelBVH {
+
+    private static final int BINS = 12;
+    private static final int MAX_LEAF_SIZE = 4;
+
+    /**
+     * The closest intersection found by {@link #trace}. Reuse one per thread to avoid allocation
+     */
+    public static class Hit {
+
+        public final Vector3 pos = new Vector3();
+        /**
+         * The unit face normal, facing the start of the ray
+         */
+        public final Vector3 normal = new Vector3();
+        /**
+         * Fraction of the way from start to end
+         */
+        public double t;
+        /**
+         * Index of the face in the model, the first vertex of the face is face * vp
+         */
+        public int face;
+        public double u;
+        public double v;
+
+        private int[] stack = new int[64];
+    }
+
+    private final int triCount;
+    private final double[] tris; // 9 per triangle, the positions of its vertices
+    private final double[] uvs; // 6 per triangle
+    private final int[] faces;
+
+    private double[] nodeBounds; // 6 per node, min then max
+    private int[] nodeFirst; // leaf: first triangle, interior: right child. The left child follows its parent
+    private int[] nodeCount; // leaf: triangle count, interior: -1 - split axis
+    private int nodes;
+    private int depth;
+
+    public ModelBVH(CCModel model) {
+        int vp = model.vp;
+        Vertex5[] verts = model.verts;
+        int faceCount = verts.length / vp;
+        int n = faceCount * (vp - 2);
+
+        double[] srcTris = new double[n * 9];
+        double[] srcUVs = new double[n * 6];
+        int[] srcFaces = new int[n];
+        int t = 0;
+        for (int f = 0; f < faceCount; f++) for (int k = 2; k < vp; k++) {
+            putVertex(srcTris, srcUVs, t, 0, verts[f * vp]);
+            putVertex(srcTris, srcUVs, t, 1, verts[f * vp + k - 1]);
+            putVertex(srcTris, srcUVs, t, 2, verts[f * vp + k]);
+            srcFaces[t++] = f;
+        }
+
+        triCount = n;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        double[] centroids = new double[n * 3];
+        for (int i = 0; i < n; i++) for (int a = 0; a < 3; a++)
+            centroids[i * 3 + a] = (srcTris[i * 9 + a] + srcTris[i * 9 + 3 + a] + srcTris[i * 9 + 6 + a]) / 3;
+
+        int maxNodes = Math.max(2 * n - 1, 1);
+        nodeBounds = new double[maxNodes * 6];
+        nodeFirst = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        build(srcTris, centroids, order, 0, n, 1);
+
+        tris = new double[n * 9];
+        uvs = new double[n * 6];
+        faces = new int[n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(srcTris, order[i] * 9, tris, i * 9, 9);
+            System.arraycopy(srcUVs, order[i] * 6, uvs, i * 6, 6);
+            faces[i] = srcFaces[order[i]];
+        }
+        nodeBounds = Arrays.copyOf(nodeBounds, nodes * 6);
+        nodeFirst = Arrays.copyOf(nodeFirst, nodes);
+        nodeCount = Arrays.copyOf(nodeCount, nodes);
+    }
+
+    private static void putVertex(double[] tris, double[] uvs, int t, int k, Vertex5 vert) {
+        tris[t * 9 + k * 3] = vert.vec.x;
+        tris[t * 9 + k * 3 + 1] = vert.vec.y;
+        tris[t * 9 + k * 3 + 2] = vert.vec.z;
+        uvs[t * 6 + k * 2] = vert.uv.u;
+        uvs[t * 6 + k * 2 + 1] = vert.uv.v;
+    }
+
+    /**
+     * Builds the subtree over order[start, end)
+     *
+     * @return The index of the subtree's root
+     */
+    private int build(double[] tris, double[] centroids, int[] order, int start, int end, int level) {
+        int node = nodes++;
+        depth = Math.max(depth, level);
+        double[] b = nodeBounds;
+        b[node * 6] = b[node * 6 + 1] = b[node * 6 + 2] = Double.POSITIVE_INFINITY;
+        b[node * 6 + 3] = b[node * 6 + 4] = b[node * 6 + 5] = Double.NEGATIVE_INFINITY;
+        double[] cmin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+        double[] cmax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        for (int i = start; i < end; i++) {
+            int t = order[i];
+            for (int a = 0; a < 3; a++) {
+                for (int k = 0; k < 3; k++) {
+                    double d = tris[t * 9 + k * 3 + a];
+                    if (d < b[node * 6 + a]) b[node * 6 + a] = d;
+                    if (d > b[node * 6 + 3 + a]) b[node * 6 + 3 + a] = d;
+                }
+                double c = centroids[t * 3 + a];
+                if (c < cmin[a]) cmin[a] = c;
+                if (c > cmax[a]) cmax[a] = c;
+            }
+        }
+
+        int count = end - start;
+        int axis = 0;
+        for (int a = 1; a < 3; a++) if (cmax[a] - cmin[a] > cmax[axis] - cmin[axis]) axis = a;
+        double extent = cmax[axis] - cmin[axis];
+        int split = count <= MAX_LEAF_SIZE || extent <= 0 ? -1
+                : findSplit(tris, centroids, order, start, end, axis, cmin[axis], extent);
+        if (split < 0) {
+            nodeFirst[node] = start;
+            nodeCount[node] = count;
+            return node;
+        }
+
+        // partition by bin, triangles in bins below split go left
+        int mid = start;
+        for (int i = start; i < end; i++) {
+            if (bin(centroids[order[i] * 3 + axis], cmin[axis], extent) < split) {
+                int tmp = order[i];
+                order[i] = order[mid];
+                order[mid++] = tmp;
+            }
+        }
+
+        nodeCount[node] = -1 - axis;
+        build(tris, centroids, order, start, mid, level + 1);
+        nodeFirst[node] = build(tris, centroids, order, mid, end, level + 1);
+        return node;
+    }
+
+    private static int bin(double c, double min, double extent) {
+        return Math.min((int) ((c - min) / extent * BINS), BINS - 1);
+    }
+
+    /**
+     * @return The first bin of the right side of the cheapest split, or -1 if a leaf is cheaper
+     */
+    private static int findSplit(double[] tris, double[] centroids, int[] order, int start, int end, int axis,
+            double min, double extent) {
+        int[] counts = new int[BINS];
+        double[] bounds = new double[BINS * 6];
+        for (int i = 0; i < BINS; i++) resetBounds(bounds, i);
+        for (int i = start; i < end; i++) {
+            int t = order[i];
+            int bin = bin(centroids[t * 3 + axis], min, extent);
+            counts[bin]++;
+            for (int k = 0; k < 3; k++) for (int a = 0; a < 3; a++) {
+                double d = tris[t * 9 + k * 3 + a];
+                if (d < bounds[bin * 6 + a]) bounds[bin * 6 + a] = d;
+                if (d > bounds[bin * 6 + 3 + a]) bounds[bin * 6 + 3 + a] = d;
+            }
+        }
+
+        // sweep from the right to find the area and count right of each split
+        double[] rightArea = new double[BINS];
+        int[] rightCount = new int[BINS];
+        double[] acc = new double[6];
+        resetBounds(acc, 0);
+        int n = 0;
+        for (int i = BINS - 1; i > 0; i--) {
+            n += counts[i];
+            enclose(acc, bounds, i);
+            rightCount[i] = n;
+            rightArea[i] = n == 0 ? 0 : area(acc);
+        }
+
+        resetBounds(acc, 0);
+        n = 0;
+        int best = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int i = 1; i < BINS; i++) {
+            n += counts[i - 1];
+            enclose(acc, bounds, i - 1);
+            if (n == 0 || rightCount[i] == 0) continue;
+
+            double cost = area(acc) * n + rightArea[i] * rightCount[i];
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = i;
+            }
+        }
+
+        resetBounds(acc, 0);
+        for (int i = 0; i < BINS; i++) enclose(acc, bounds, i);
+        double leafCost = area(acc) * (end - start);
+        // traversing a node costs about as much as one more triangle test
+        if (best < 0 || bestCost + area(acc) >= leafCost && end - start <= MAX_LEAF_SIZE * 4) return -1;
+        return best;
+    }
+
+    private static void resetBounds(double[] bounds, int i) {
+        for (int a = 0; a < 3; a++) {
+            bounds[i * 6 + a] = Double.POSITIVE_INFINITY;
+            bounds[i * 6 + 3 + a] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void enclose(double[] acc, double[] bounds, int i) {
+        if (bounds[i * 6] > bounds[i * 6 + 3]) return; // empty
+        for (int a = 0; a < 3; a++) {
+            acc[a] = Math.min(acc[a], bounds[i * 6 + a]);
+            acc[3 + a] = Math.max(acc[3 + a], bounds[i * 6 + 3 + a]);
+        }
+    }
+
+    private static double area(double[] b) {
+        double dx = b[3] - b[0], dy = b[4] - b[1], dz = b[5] - b[2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /**
+     * @return The number of triangles, quads count as two
+     */
+    public int getTriangleCount() {
+        return triCount;
+    }
+
+    /**
+     * @return The bounds of every triangle, empty if the model has no faces
+     */
+    public Cuboid6 getBounds() {
+        if (triCount == 0) return new Cuboid6(0, 0, 0, 0, 0, 0);
+        return new Cuboid6(
+                nodeBounds[0],
+                nodeBounds[1],
+                nodeBounds[2],
+                nodeBounds[3],
+                nodeBounds[4],
+                nodeBounds[5]);
+    }
+
+    /**
+     * Finds the closest intersection of the segment from start to end with a triangle. Triangles are hit from either
+     * side.
+     *
+     * @param hit Filled with the closest intersection, only modified if true is returned
+     * @return True if the segment hit a triangle
+     */
+    public boolean trace(Vector3 start, Vector3 end, Hit hit) {
+        if (triCount == 0) return false;
+
+        double ox = start.x, oy = start.y, oz = start.z;
+        double dx = end.x - ox, dy = end.y - oy, dz = end.z - oz;
+        double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+
+        int[] stack = hit.stack;
+        if (stack.length <= depth) stack = hit.stack = new int[depth + 1];
+        int sp = 0;
+        stack[sp++] = 0;
+
+        double best = 1;
+        int bestTri = -1;
+        double bestU = 0, bestV = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (!intersectsBounds(node, ox, oy, oz, ix, iy, iz, best)) continue;
+
+            int count = nodeCount[node];
+            if (count < 0) {
+                // visit the child nearer the start first, so the further one is more likely culled by best
+                int axis = -1 - count;
+                boolean flip = (axis == 0 ? dx : axis == 1 ? dy : dz) < 0;
+                stack[sp++] = flip ? node + 1 : nodeFirst[node];
+                stack[sp++] = flip ? nodeFirst[node] : node + 1;
+                continue;
+            }
+
+            for (int t = nodeFirst[node], last = t + count; t < last; t++) {
+                int p = t * 9;
+                double e1x = tris[p + 3] - tris[p], e1y = tris[p + 4] - tris[p + 1], e1z = tris[p + 5] - tris[p + 2];
+                double e2x = tris[p + 6] - tris[p], e2y = tris[p + 7] - tris[p + 1], e2z = tris[p + 8] - tris[p + 2];
+                double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+                double det = e1x * px + e1y * py + e1z * pz;
+                if (det == 0) continue; // parallel or degenerate
+
+                double inv = 1 / det;
+                double sx = ox - tris[p], sy = oy - tris[p + 1], sz = oz - tris[p + 2];
+                double b1 = (sx * px + sy * py + sz * pz) * inv;
+                if (b1 < 0 || b1 > 1) continue;
+
+                double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+                double b2 = (dx * qx + dy * qy + dz * qz) * inv;
+                if (b2 < 0 || b1 + b2 > 1) continue;
+
+                double d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+                if (d < 0 || d >= best) continue;
+
+                best = d;
+                bestTri = t;
+                bestU = b1;
+                bestV = b2;
+            }
+        }
+        if (bestTri < 0) return false;
+
+        int p = bestTri * 9, q = bestTri * 6;
+        double w = 1 - bestU - bestV;
+        hit.t = best;
+        hit.face = faces[bestTri];
+        hit.pos.set(ox + dx * best, oy + dy * best, oz + dz * best);
+        hit.u = uvs[q] * w + uvs[q + 2] * bestU + uvs[q + 4] * bestV;
+        hit.v = uvs[q + 1] * w + uvs[q + 3] * bestU + uvs[q + 5] * bestV;
+
+        double e1x = tris[p + 3] - tris[p], e1y = tris[p + 4] - tris[p + 1], e1z = tris[p + 5] - tris[p + 2];
+        double e2x = tris[p + 6] - tris[p], e2y = tris[p + 7] - tris[p + 1], e2z = tris[p + 8] - tris[p + 2];
+        hit.normal.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).normalize();
+        if (hit.normal.dotProduct(dx, dy, dz) > 0) hit.normal.negate();
+        return true;
+    }
+
+    /**
+     * Slab test of the segment against a node's bounds, limited to the part of the segment before tMax. NaNs from a
+     * segment starting on a bound plane it is parallel to are ignored by the comparisons.
+     */
+    private boolean intersectsBounds(int node, double ox, double oy, double oz, double ix, double iy, double iz,
+            double tMax) {
+        double[] b = nodeBounds;
+        int i = node * 6;
+        double lo = 0, hi = tMax;
+        double t0 = (b[i] - ox) * ix, t1 = (b[i + 3] - ox) * ix;
+        if (t0 > t1) {
+            double tmp = t0;
+            t0 = t1;
+            t1 = tmp;
+        }
+        if (t0 > lo) lo = t0;
+        if (t1 < hi) hi = t1;
+        t0 = (b[i + 1] - oy) * iy;
+        t1 = (b[i + 4] - oy) * iy;
+        if (t0 > t1) {
+            double tmp = t0;
+            t0 = t1;
+            t1 = tmp;
+        }
+        if (t0 > lo) lo = t0;
+        if (t1 < hi) hi = t1;
+        t0 = (b[i + 2] - oz) * iz;
+        t1 = (b[i + 5] - oz) * iz;
+        if (t0 > t1) {
+            double tmp = t0;
+            t0 = t1;
+            t1 = tmp;
+        }
+        if (t0 > lo) lo = t0;
+        if (t1 < hi) hi = t1;
+        return lo <= hi;
+    }
+}
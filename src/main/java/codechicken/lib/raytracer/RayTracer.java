@@ -28,6 +28,11 @@ public class RayTracer {
     private int s_side;
     private IndexedCuboid6 c_cuboid;
 
+    private Vector3 m_start = new Vector3();
+    private Vector3 m_end = new Vector3();
+    private ModelBVH.Hit m_hit = new ModelBVH.Hit();
+    private ModelBVH.Hit c_hit = new ModelBVH.Hit();
+
     private static ThreadLocal<RayTracer> t_inst = new ThreadLocal<RayTracer>();
 
     public static RayTracer instance() {
@@ -133,6 +138,80 @@ public class RayTracer {
         return mop;
     }
 
+    /**
+     * Traces against the triangles of a model. sideHit is the side closest to the facing of the face hit and subHit is
+     * the face index. See {@link #getModelHit()} for the UV.
+     */
+    public MovingObjectPosition rayTraceModel(Vector3 start, Vector3 end, ModelBVH bvh) {
+        s_dist = Double.MAX_VALUE;
+        s_side = -1;
+        if (!bvh.trace(start, end, m_hit)) return null;
+
+        s_dist = vec2.set(m_hit.pos).subtract(start).magSquared();
+        s_side = sideOf(m_hit.normal);
+        MovingObjectPosition mop = new MovingObjectPosition(0, 0, 0, s_side, m_hit.pos.toVec3D());
+        mop.typeOfHit = null;
+        mop.subHit = m_hit.face;
+        return mop;
+    }
+
+    /**
+     * @return The intersection found by the last rayTraceModel or rayTraceModels call that hit. Reused between calls
+     */
+    public ModelBVH.Hit getModelHit() {
+        return m_hit;
+    }
+
+    private static int sideOf(Vector3 normal) {
+        double x = Math.abs(normal.x), y = Math.abs(normal.y), z = Math.abs(normal.z);
+        if (y >= x && y >= z) return normal.y < 0 ? 0 : 1;
+        if (z >= x) return normal.z < 0 ? 2 : 3;
+        return normal.x < 0 ? 4 : 5;
+    }
+
+    public MovingObjectPosition rayTraceModels(Vector3 start, Vector3 end, List<IndexedModel> models) {
+        double c_dist = Double.MAX_VALUE;
+        MovingObjectPosition c_mop = null;
+
+        for (IndexedModel model : models) {
+            MovingObjectPosition mop = rayTraceModel(start, end, model.bvh);
+            if (mop != null && s_dist < c_dist) {
+                mop = new ExtendedMOP(mop, model.data, s_dist);
+                c_dist = s_dist;
+                c_mop = mop;
+                ModelBVH.Hit swap = c_hit;
+                c_hit = m_hit;
+                m_hit = swap;
+            }
+        }
+
+        if (c_mop != null) {
+            ModelBVH.Hit swap = c_hit;
+            c_hit = m_hit;
+            m_hit = swap;
+        }
+        return c_mop;
+    }
+
+    /**
+     * Traces against models in block space, positioned at pos
+     */
+    public MovingObjectPosition rayTraceModels(Vector3 start, Vector3 end, List<IndexedModel> models,
+            BlockCoord pos) {
+        m_start.set(start.x - pos.x, start.y - pos.y, start.z - pos.z);
+        m_end.set(end.x - pos.x, end.y - pos.y, end.z - pos.z);
+        MovingObjectPosition mop = rayTraceModels(m_start, m_end, models);
+        if (mop != null) {
+            m_hit.pos.add(pos.x, pos.y, pos.z);
+            mop.hitVec = m_hit.pos.toVec3D();
+            mop.typeOfHit = MovingObjectType.BLOCK;
+            mop.blockX = pos.x;
+            mop.blockY = pos.y;
+            mop.blockZ = pos.z;
+        }
+        return mop;
+    }
+
     public static MovingObjectPosition retraceBlock(World world, EntityPlayer player, int x, int y, int z) {
         Block block = world.getBlock(x, y, z);
 
@@ -0,0 +1,213 @@
+package codechicken.lib.render;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import net.minecraftforge.client.event.TextureStitchEvent;
+import net.minecraftforge.common.MinecraftForge;
+
+import codechicken.lib.colour.ColourRGBA;
+import codechicken.lib.render.uv.UVTransformation;
+import codechicken.lib.vec.RedundantTransformation;
+import codechicken.lib.vec.Transformation;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+
+/**
+ * Caches CCModels pre-transformed by a Transformation and UVTransformation pair, so that rendering a known variant is a
+ * bulk copy into the vertex sink instead of a pass through the pipeline. Entries are keyed by the identity of the
+ * model and both transformations, so keep and reuse the transformation instances (eg. one IconTransformation per
+ * icon). The least recently used variants are evicted beyond the size bound and all variants are dropped when a
+ * texture atlas is restitched.
+ * <p>
+ * Baked variants carry positions, UVs, normals and the model's colour and lighting attributes, applied according to
+ * useColour and computeLighting. Lighting operations such as LightMatrix are not applied, brightness is taken from the
+ * render state. Call {@link #invalidate(CCModel)} after modifying a model.
+ */
+public class BakedModelCache {
+
+    public static class BakedModel {
+
+        public final int vertexMode;
+        public final int vertexCount;
+        public final boolean hasNormals;
+        /**
+         * Interleaved x, y, z, u, v and nx, ny, nz if hasNormals
+         */
+        public final float[] data;
+        /**
+         * Per vertex RGBA multipliers from the model's colour and lighting attributes, or null if absent
+         */
+        public final int[] colours;
+        public final int[] lighting;
+
+        public BakedModel(CCModel model, Transformation t, UVTransformation uvt) {
+            CCModel m = model.copy();
+            if (t != null) m.apply(t);
+            if (uvt != null) m.apply(uvt);
+
+            vertexMode = m.vertexMode;
+            vertexCount = m.verts.length;
+            hasNormals = m.normals() != null;
+
+            int stride = hasNormals ? 8 : 5;
+            data = new float[vertexCount * stride];
+            for (int i = 0, j = 0; i < vertexCount; i++, j += stride) {
+                Vertex5 v = m.verts[i];
+                data[j] = (float) v.vec.x;
+                data[j + 1] = (float) v.vec.y;
+                data[j + 2] = (float) v.vec.z;
+                data[j + 3] = (float) v.uv.u;
+                data[j + 4] = (float) v.uv.v;
+                if (hasNormals) {
+                    data[j + 5] = (float) m.normals()[i].x;
+                    data[j + 6] = (float) m.normals()[i].y;
+                    data[j + 7] = (float) m.normals()[i].z;
+                }
+            }
+
+            colours = m.getAttributes(CCRenderState.colourAttrib);
+            lighting = m.getAttributes(CCRenderState.lightingAttrib);
+        }
+
+        /**
+         * Writes all vertices to the state's vertex sink, using its base colour, alpha override, brightness and normal,
+         * colour and lighting settings.
+         */
+        public void render(CCRenderState state) {
+            IVertexSink sink = state.getVertexSink();
+            if (state.hasBrightness) sink.setBrightness(state.brightness);
+            boolean normals = hasNormals && state.useNormals;
+            int[] lighting = state.computeLighting ? this.lighting : null;
+
+            if (!state.useColour || colours == null && lighting == null) {
+                if (state.useColour) sink.setColour(state.outputColour(state.baseColour));
+                sink.addVertices(data, 0, vertexCount, hasNormals, normals);
+                return;
+            }
+
+            for (int i = 0; i < vertexCount; i++) {
+                int colour = colours == null ? state.baseColour : ColourRGBA.multiply(state.baseColour, colours[i]);
+                if (lighting != null) colour = ColourRGBA.multiply(colour, lighting[i]);
+                sink.setColour(state.outputColour(colour));
+                sink.addVertices(data, i, 1, hasNormals, normals);
+            }
+        }
+    }
+
+    private static class Key {
+
+        final CCModel model;
+        final Transformation t;
+        final UVTransformation uvt;
+
+        Key(CCModel model, Transformation t, UVTransformation uvt) {
+            this.model = model;
+            this.t = t;
+            this.uvt = uvt;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(model) * 31 + System.identityHashCode(t)) * 31
+                    + System.identityHashCode(uvt);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return model == k.model && t == k.t && uvt == k.uvt;
+        }
+    }
+
+    /**
+     * Every live cache, cleared by a single handler on restitch so caches can be garbage collected
+     */
+    private static final Set<BakedModelCache> caches = Collections.newSetFromMap(new WeakHashMap<>());
+
+    static {
+        MinecraftForge.EVENT_BUS.register(new StitchHandler());
+    }
+
+    public static class StitchHandler {
+
+        private StitchHandler() {}
+
+        @SubscribeEvent
+        public void onTextureStitch(TextureStitchEvent.Post event) {
+            List<BakedModelCache> live;
+            synchronized (caches) {
+                live = new ArrayList<>(caches);
+            }
+            for (BakedModelCache cache : live) cache.clear();
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<Key, BakedModel> cache;
+    private int hits;
+    private int misses;
+
+    public BakedModelCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        cache = new LinkedHashMap<Key, BakedModel>(16, 0.75F, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, BakedModel> eldest) {
+                return size() > BakedModelCache.this.maxEntries;
+            }
+        };
+        synchronized (caches) {
+            caches.add(this);
+        }
+    }
+
+    /**
+     * @return The baked variant of model under t and uvt, baking it if not cached. Either transformation may be null
+     */
+    public synchronized BakedModel get(CCModel model, Transformation t, UVTransformation uvt) {
+        Key key = new Key(model, t, uvt);
+        BakedModel baked = cache.get(key);
+        if (baked != null) {
+            hits++;
+            return baked;
+        }
+
+        misses++;
+        baked = new BakedModel(model, t instanceof RedundantTransformation ? null : t, uvt);
+        cache.put(key, baked);
+        return baked;
+    }
+
+    public void render(CCRenderState state, CCModel model, Transformation t, UVTransformation uvt) {
+        get(model, t, uvt).render(state);
+    }
+
+    /**
+     * Removes all variants of model
+     */
+    public synchronized void invalidate(CCModel model) {
+        cache.keySet().removeIf(k -> k.model == model);
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+}
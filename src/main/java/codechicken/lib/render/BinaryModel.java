@@ -0,0 +1,303 @@
+package codechicken.lib.render;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import codechicken.lib.lighting.LC;
+import codechicken.lib.vec.Vector3;
+
+/**
+ * Compact little endian binary form of a set of named CCModels. Each group stores its vertex mode, positions, UVs and
+ * texture indices as packed arrays followed by whichever of the built-in attributes it has (normals, colour, lighting,
+ * side and light coords). Values are stored at full precision, so a model read back is identical to the one written.
+ * <p>
+ * Files are read into a heap buffer with one channel read and each array is filled with a single bulk get. No mapping
+ * is held open, so cache files can be deleted or replaced straight after reading. Use {@link #readPacked(File)} to skip
+ * building a Vertex5 and Vector3 per vertex.
+ */
+public class BinaryModel {
+
+    public static final int MAGIC = 0x4D4C4343; // CCLM
+    public static final int VERSION = 1;
+
+    private static final int NORMALS = 1;
+    private static final int COLOURS = 2;
+    private static final int LIGHTING = 4;
+    private static final int SIDES = 8;
+    private static final int LIGHT_COORDS = 16;
+
+    /**
+     * Writes models to file, through a temporary file so readers never see a partial file
+     */
+    public static void write(Map<String, CCModel> models, File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            throw new IOException("Could not create directory " + parent);
+
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                write(models, out);
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public static void write(Map<String, CCModel> models, OutputStream out) throws IOException {
+        ByteBuffer buf = encode(models);
+        out.write(buf.array(), 0, buf.limit());
+    }
+
+    /**
+     * @return A heap buffer holding the encoded models, positioned at 0
+     */
+    public static ByteBuffer encode(Map<String, CCModel> models) {
+        int size = 12;
+        for (Map.Entry<String, CCModel> e : models.entrySet())
+            size += 16 + e.getKey().getBytes(StandardCharsets.UTF_8).length + groupSize(e.getValue());
+
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(models.size());
+        for (Map.Entry<String, CCModel> e : models.entrySet()) {
+            byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+            buf.putInt(name.length).put(name);
+            writeGroup(buf, e.getValue());
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static int attributeFlags(CCModel model) {
+        int flags = 0;
+        for (int i = 0; i < model.attributes.size(); i++) {
+            if (model.attributes.get(i) == null) continue;
+
+            CCRenderState.VertexAttribute<?> attr = CCRenderState.getAttribute(i);
+            if (attr == CCRenderState.normalAttrib) flags |= NORMALS;
+            else if (attr == CCRenderState.colourAttrib) flags |= COLOURS;
+            else if (attr == CCRenderState.lightingAttrib) flags |= LIGHTING;
+            else if (attr == CCRenderState.sideAttrib) flags |= SIDES;
+            else if (attr == CCRenderState.lightCoordAttrib) flags |= LIGHT_COORDS;
+            else throw new IllegalArgumentException("Cannot write vertex attribute " + attr.getClass().getName());
+        }
+        return flags;
+    }
+
+    private static int groupSize(CCModel model) {
+        int n = model.verts.length;
+        int flags = attributeFlags(model);
+        int size = n * (3 * 8 + 2 * 8 + 4);
+        if ((flags & NORMALS) != 0) size += n * 3 * 8;
+        if ((flags & COLOURS) != 0) size += n * 4;
+        if ((flags & LIGHTING) != 0) size += n * 4;
+        if ((flags & SIDES) != 0) size += n * 4;
+        if ((flags & LIGHT_COORDS) != 0) size += n * 5 * 4;
+        return size;
+    }
+
+    private static void writeGroup(ByteBuffer buf, CCModel model) {
+        int n = model.verts.length;
+        int flags = attributeFlags(model);
+        buf.putInt(model.vertexMode).putInt(n).putInt(flags);
+
+        for (int i = 0; i < n; i++) {
+            Vector3 vec = model.verts[i].vec;
+            buf.putDouble(vec.x).putDouble(vec.y).putDouble(vec.z);
+        }
+        for (int i = 0; i < n; i++) buf.putDouble(model.verts[i].uv.u).putDouble(model.verts[i].uv.v);
+        for (int i = 0; i < n; i++) buf.putInt(model.verts[i].uv.tex);
+
+        if ((flags & NORMALS) != 0) {
+            Vector3[] normals = model.normals();
+            for (int i = 0; i < n; i++) buf.putDouble(normals[i].x).putDouble(normals[i].y).putDouble(normals[i].z);
+        }
+        if ((flags & COLOURS) != 0) putInts(buf, model.getAttributes(CCRenderState.colourAttrib));
+        if ((flags & LIGHTING) != 0) putInts(buf, model.getAttributes(CCRenderState.lightingAttrib));
+        if ((flags & SIDES) != 0) putInts(buf, model.getAttributes(CCRenderState.sideAttrib));
+        if ((flags & LIGHT_COORDS) != 0) {
+            LC[] lcs = model.getAttributes(CCRenderState.lightCoordAttrib);
+            for (int i = 0; i < n; i++) buf.putInt(lcs[i].side);
+            for (int i = 0; i < n; i++)
+                buf.putFloat(lcs[i].fa).putFloat(lcs[i].fb).putFloat(lcs[i].fc).putFloat(lcs[i].fd);
+        }
+    }
+
+    private static void putInts(ByteBuffer buf, int[] a) {
+        buf.asIntBuffer().put(a);
+        buf.position(buf.position() + a.length * 4);
+    }
+
+    /**
+     * Reads the whole of file into a heap buffer
+     */
+    public static ByteBuffer load(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Binary model too large " + file);
+
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) if (channel.read(buf) < 0) throw new IOException("Unexpected end of " + file);
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /**
+     * @return A map of group names to models, in file order
+     */
+    public static Map<String, CCModel> read(File file) throws IOException {
+        return read(load(file));
+    }
+
+    public static Map<String, CCModel> read(ByteBuffer buf) throws IOException {
+        Map<String, CCModel> models = new LinkedHashMap<>();
+        for (Map.Entry<String, Group> e : readGroups(buf).entrySet()) models.put(e.getKey(), e.getValue().toModel());
+        return models;
+    }
+
+    /**
+     * @return A map of group names to packed models, in file order
+     */
+    public static Map<String, PackedModel> readPacked(File file) throws IOException {
+        return readPacked(load(file));
+    }
+
+    public static Map<String, PackedModel> readPacked(ByteBuffer buf) throws IOException {
+        Map<String, PackedModel> models = new LinkedHashMap<>();
+        for (Map.Entry<String, Group> e : readGroups(buf).entrySet()) models.put(e.getKey(), e.getValue().toPacked());
+        return models;
+    }
+
+    /**
+     * The arrays of one group as stored
+     */
+    private static class Group {
+
+        int vertexMode;
+        double[] positions;
+        double[] uvs;
+        int[] tex;
+        double[] normals;
+        int[] lcSides;
+        float[] lcWeights;
+        ArrayList<Object> attributes = new ArrayList<>();
+
+        PackedModel toPacked() {
+            float[] packedNormals = null;
+            if (normals != null) {
+                packedNormals = new float[normals.length];
+                for (int i = 0; i < normals.length; i++) packedNormals[i] = (float) normals[i];
+            }
+            return new PackedModel(vertexMode, positions, uvs, tex, packedNormals, lcSides, lcWeights, attributes);
+        }
+
+        CCModel toModel() {
+            int n = tex.length;
+            CCModel model = CCModel.newModel(vertexMode, n);
+            for (int i = 0; i < n; i++) model.verts[i] = new Vertex5(
+                    positions[i * 3],
+                    positions[i * 3 + 1],
+                    positions[i * 3 + 2],
+                    uvs[i * 2],
+                    uvs[i * 2 + 1],
+                    tex[i]);
+
+            for (int i = 0; i < attributes.size(); i++) if (attributes.get(i) != null)
+                setAttribute(model.attributes, CCRenderState.getAttribute(i), attributes.get(i));
+            if (normals != null) {
+                Vector3[] modelNormals = model.getOrAllocate(CCRenderState.normalAttrib);
+                for (int i = 0; i < n; i++)
+                    modelNormals[i] = new Vector3(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]);
+            }
+            if (lcSides != null) {
+                LC[] lcs = model.getOrAllocate(CCRenderState.lightCoordAttrib);
+                for (int i = 0; i < n; i++) lcs[i] = new LC(
+                        lcSides[i],
+                        lcWeights[i * 4],
+                        lcWeights[i * 4 + 1],
+                        lcWeights[i * 4 + 2],
+                        lcWeights[i * 4 + 3]);
+            }
+            return model;
+        }
+    }
+
+    private static Map<String, Group> readGroups(ByteBuffer buf) throws IOException {
+        buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buf.getInt() != MAGIC) throw new IOException("Not a binary model");
+            int version = buf.getInt();
+            if (version != VERSION) throw new IOException("Unsupported binary model version " + version);
+
+            int groups = buf.getInt();
+            Map<String, Group> models = new LinkedHashMap<>();
+            for (int g = 0; g < groups; g++) {
+                byte[] name = new byte[buf.getInt()];
+                buf.get(name);
+                models.put(new String(name, StandardCharsets.UTF_8), readGroup(buf));
+            }
+            return models;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt binary model", e);
+        }
+    }
+
+    private static Group readGroup(ByteBuffer buf) {
+        Group group = new Group();
+        group.vertexMode = buf.getInt();
+        int n = buf.getInt();
+        int flags = buf.getInt();
+
+        group.positions = getDoubles(buf, n * 3);
+        group.uvs = getDoubles(buf, n * 2);
+        group.tex = getInts(buf, n);
+        if ((flags & NORMALS) != 0) group.normals = getDoubles(buf, n * 3);
+        if ((flags & COLOURS) != 0) setAttribute(group.attributes, CCRenderState.colourAttrib, getInts(buf, n));
+        if ((flags & LIGHTING) != 0) setAttribute(group.attributes, CCRenderState.lightingAttrib, getInts(buf, n));
+        if ((flags & SIDES) != 0) setAttribute(group.attributes, CCRenderState.sideAttrib, getInts(buf, n));
+        if ((flags & LIGHT_COORDS) != 0) {
+            group.lcSides = getInts(buf, n);
+            group.lcWeights = new float[n * 4];
+            buf.asFloatBuffer().get(group.lcWeights);
+            buf.position(buf.position() + n * 16);
+        }
+        return group;
+    }
+
+    private static void setAttribute(ArrayList<Object> attributes, CCRenderState.VertexAttribute<?> attr, Object a) {
+        while (attributes.size() <= attr.attributeIndex) attributes.add(null);
+        attributes.set(attr.attributeIndex, a);
+    }
+
+    private static double[] getDoubles(ByteBuffer buf, int length) {
+        double[] a = new double[length];
+        buf.asDoubleBuffer().get(a);
+        buf.position(buf.position() + length * 8);
+        return a;
+    }
+
+    private static int[] getInts(ByteBuffer buf, int length) {
+        int[] a = new int[length];
+        buf.asIntBuffer().get(a);
+        buf.position(buf.position() + length * 4);
+        return a;
+    }
+}
@@ -2,32 +2,27 @@ package codechicken.lib.render;
 
 import static codechicken.lib.vec.Rotation.sideRotations;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import net.minecraft.client.Minecraft;
 import net.minecraft.util.ResourceLocation;
 
 import codechicken.lib.lighting.LC;
 import codechicken.lib.lighting.LightModel;
+import codechicken.lib.raytracer.ModelBVH;
 import codechicken.lib.render.uv.UV;
 import codechicken.lib.render.uv.UVTransformation;
 import codechicken.lib.render.uv.UVTranslation;
 import codechicken.lib.util.Copyable;
 import codechicken.lib.vec.Cuboid6;
-import codechicken.lib.vec.RedundantTransformation;
 import codechicken.lib.vec.Transformation;
 import codechicken.lib.vec.TransformationList;
 import codechicken.lib.vec.Vector3;
@@ -35,29 +30,157 @@ import codechicken.lib.vec.Vector3;
 @SuppressWarnings("ForLoopReplaceableByForEach")
 public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
 
-    private static class PositionNormalEntry {
+    /**
+     * Spreads every bit of h into the low bits, since doubles and grid cells of round numbers differ in the high bits
+     */
+    private static int hashMix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
 
-        public Vector3 pos;
-        public LinkedList<Vector3> normals = new LinkedList<Vector3>();
+    /**
+     * Open addressed hash from vertex positions to groups of vertices, each group identified by the index of its first
+     * vertex. Exact positions are hashed directly. With an epsilon, positions are hashed by grid cell of that size and
+     * the neighbouring cells are searched, so any position within epsilon of a group's first vertex joins it.
+     */
+    private static class PositionIndex {
+
+        private final Vertex5[] verts;
+        private final double epsilon;
+        private final int[] slots; // first vertex + 1 of a group in the slot's position or cell, 0 if empty
+        private final int[] chain; // next group in the same cell, by first vertex, -1 terminated
+        private final int mask;
+
+        PositionIndex(Vertex5[] verts, double epsilon) {
+            this.verts = verts;
+            this.epsilon = epsilon;
+            int size = Integer.highestOneBit(Math.max(verts.length, 1) * 2 - 1) << 1;
+            slots = new int[size];
+            chain = epsilon > 0 ? new int[verts.length] : null;
+            mask = size - 1;
+        }
 
-        public PositionNormalEntry(Vector3 position) {
-            pos = position;
+        private long cell(double d) {
+            return (long) Math.floor(d / epsilon);
         }
 
-        public boolean positionEqual(Vector3 v) {
-            return pos.x == v.x && pos.y == v.y && pos.z == v.z;
+        private int hash(double x, double y, double z) {
+            // + 0.0 maps -0.0 to 0.0 as they compare equal
+            return hashMix(
+                    (Double.doubleToLongBits(x + 0.0) * 31 + Double.doubleToLongBits(y + 0.0)) * 31
+                            + Double.doubleToLongBits(z + 0.0));
         }
 
-        public PositionNormalEntry addNormal(Vector3 normal) {
-            normals.add(normal);
-            return this;
+        private int hash(long cx, long cy, long cz) {
+            return hashMix((cx * 31 + cy) * 31 + cz);
+        }
+
+        /**
+         * @return The first vertex of the group matching vec, or -1
+         */
+        int find(Vector3 vec) {
+            if (epsilon <= 0) {
+                for (int i = hash(vec.x, vec.y, vec.z) & mask; slots[i] != 0; i = i + 1 & mask)
+                    if (verts[slots[i] - 1].vec.equals(vec)) return slots[i] - 1;
+                return -1;
+            }
+
+            double eps2 = epsilon * epsilon;
+            long cx = cell(vec.x), cy = cell(vec.y), cz = cell(vec.z);
+            for (long x = cx - 1; x <= cx + 1; x++) for (long y = cy - 1; y <= cy + 1; y++)
+                for (long z = cz - 1; z <= cz + 1; z++) {
+                    int i = findCell(x, y, z);
+                    if (i < 0) continue;
+
+                    for (int g = slots[i] - 1; g >= 0; g = chain[g]) {
+                        Vector3 v = verts[g].vec;
+                        double dx = v.x - vec.x, dy = v.y - vec.y, dz = v.z - vec.z;
+                        if (dx * dx + dy * dy + dz * dz <= eps2) return g;
+                    }
+                }
+            return -1;
+        }
+
+        private int findCell(long cx, long cy, long cz) {
+            for (int i = hash(cx, cy, cz) & mask; slots[i] != 0; i = i + 1 & mask) {
+                Vector3 v = verts[slots[i] - 1].vec;
+                if (cell(v.x) == cx && cell(v.y) == cy && cell(v.z) == cz) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a new group starting at vertex k
+         */
+        void add(int k) {
+            Vector3 vec = verts[k].vec;
+            if (epsilon <= 0) {
+                int i = hash(vec.x, vec.y, vec.z) & mask;
+                while (slots[i] != 0) i = i + 1 & mask;
+                slots[i] = k + 1;
+                return;
+            }
+
+            long cx = cell(vec.x), cy = cell(vec.y), cz = cell(vec.z);
+            int i = findCell(cx, cy, cz);
+            if (i >= 0) {
+                chain[k] = slots[i] - 1;
+                slots[i] = k + 1;
+                return;
+            }
+
+            i = hash(cx, cy, cz) & mask;
+            while (slots[i] != 0) i = i + 1 & mask;
+            chain[k] = -1;
+            slots[i] = k + 1;
         }
     }
 
     public final int vertexMode;
     public final int vp;
     public Vertex5[] verts;
+    /**
+     * Single precision copy of verts made by {@link #bakeFloats()}, not updated when verts change
+     */
+    public Vertex5f[] floatVerts;
     public ArrayList<Object> attributes = new ArrayList<Object>();
+    private volatile CullRanges cullRanges;
+    private volatile Derived<ModelBVH> bvh;
+    private volatile Derived<ModelLOD> lod;
+
+    /**
+     * Runs of faces flush with the same block side, as first vertex and side pairs. Side is -1 for faces that are never
+     * culled. Published as one immutable object so threads never see ranges paired with the wrong vertex array
+     */
+    private static class CullRanges {
+
+        final Vertex5[] verts;
+        final int[] ranges;
+
+        CullRanges(Vertex5[] verts, int[] ranges) {
+            this.verts = verts;
+            this.ranges = ranges;
+        }
+    }
+
+    /**
+     * A structure built from the model and the vertex array it was built for, published together for the same reason
+     * as CullRanges
+     */
+    private static class Derived<T> {
+
+        final Vertex5[] verts;
+        final T value;
+
+        Derived(Vertex5[] verts, T value) {
+            this.verts = verts;
+            this.value = value;
+        }
+    }
 
     protected CCModel(int vertexMode) {
         if (vertexMode != 7 && vertexMode != 4)
@@ -76,6 +199,20 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
         return verts;
     }
 
+    @Override
+    public Vertex5f[] getFloatVertices() {
+        return floatVerts;
+    }
+
+    /**
+     * Stores a single precision copy of the vertices for rendering with {@link CCRenderState#useFloats}. Call again
+     * after modifying the model
+     */
+    public CCModel bakeFloats() {
+        floatVerts = Vertex5f.fromVertices(verts);
+        return this;
+    }
+
     @Override
     public <T> T getAttributes(CCRenderState.VertexAttribute<T> attr) {
         if (attr.attributeIndex < attributes.size()) return (T) attributes.get(attr.attributeIndex);
@@ -374,31 +511,84 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
      * @return The model
      */
     public CCModel smoothNormals() {
-        ArrayList<PositionNormalEntry> map = new ArrayList<PositionNormalEntry>();
+        return smoothNormals(0, Math.PI);
+    }
+
+    /**
+     * Averages normals at the same position to produce a smooth lighting effect. Runs in linear time using a hashed
+     * position index.
+     *
+     * @param epsilon  Vertices within this distance of the first vertex at a position are welded to it. 0 for exact
+     *                 matches only
+     * @param maxAngle Normals more than this many radians apart are not averaged together, keeping hard edges. PI or
+     *                 more to average all normals at a position
+     * @return The model
+     */
+    public CCModel smoothNormals(double epsilon, double maxAngle) {
         Vector3[] normals = normals();
-        nextvert: for (int k = 0; k < verts.length; k++) {
-            Vector3 vec = verts[k].vec;
-            for (PositionNormalEntry e : map) if (e.positionEqual(vec)) {
-                e.addNormal(normals[k]);
-                continue nextvert;
+        int n = verts.length;
+
+        // group vertices by position, groups ordered by first vertex and linked through next in vertex order
+        PositionIndex index = new PositionIndex(verts, epsilon);
+        int[] groups = new int[n];
+        int groupCount = 0;
+        int[] next = new int[n];
+        int[] tail = new int[n];
+        for (int k = 0; k < n; k++) {
+            next[k] = -1;
+            int g = index.find(verts[k].vec);
+            if (g < 0) {
+                index.add(k);
+                groups[groupCount++] = k;
+                tail[k] = k;
+            } else {
+                next[tail[g]] = k;
+                tail[g] = k;
             }
-
-            map.add(new PositionNormalEntry(vec).addNormal(normals[k]));
         }
 
-        for (PositionNormalEntry e : map) {
-            if (e.normals.size() <= 1) continue;
+        boolean hardEdges = maxAngle < Math.PI;
+        double cosMax = Math.cos(maxAngle);
+        Vector3 sum = new Vector3();
+        Vector3[] smoothed = hardEdges ? new Vector3[n] : null;
+        for (int i = 0; i < groupCount; i++) {
+            int first = groups[i];
+            if (next[first] < 0) continue;
 
-            Vector3 new_n = new Vector3();
-            for (Vector3 n : e.normals) new_n.add(n);
+            if (!hardEdges) {
+                sum.set(0, 0, 0);
+                for (int k = first; k >= 0; k = next[k]) sum.add(normals[k]);
+
+                sum.normalize();
+                for (int k = first; k >= 0; k = next[k]) normals[k].set(sum);
+                continue;
+            }
 
-            new_n.normalize();
-            for (Vector3 n : e.normals) n.set(new_n);
+            for (int k = first; k >= 0; k = next[k]) {
+                Vector3 nk = normals[k];
+                Vector3 s = smoothed[k] = new Vector3();
+                for (int j = first; j >= 0; j = next[j])
+                    if (nk.dotProduct(normals[j]) >= cosMax * nk.mag() * normals[j].mag()) s.add(normals[j]);
+                s.normalize();
+            }
+            for (int k = first; k >= 0; k = next[k]) normals[k].set(smoothed[k]);
         }
 
         return this;
     }
 
+    /**
+     * Removes zero area faces and merges adjacent coplanar axis aligned quads with the same texture, vertex order and
+     * attributes where the UVs continue across the shared edge. Faces keep their relative order. Call before computing
+     * per vertex lighting or light coords, which differ across a face and prevent merging. Bakes of this model in a
+     * {@link BakedModelCache} must be invalidated.
+     *
+     * @return The number of vertices removed
+     */
+    public int optimise() {
+        return ModelOptimiser.optimise(this);
+    }
+
     public CCModel apply(Transformation t) {
         for (int k = 0; k < verts.length; k++) verts[k].apply(t);
 
@@ -475,6 +665,200 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
         render(CCRenderState.instance(), start, end, ops);
     }
 
+    /**
+     * Renders the model once per instance, building the pipeline only once for the whole call. Each instance is
+     * translated by its position after the transformations in ops.
+     *
+     * @param positions    x, y, z of each instance
+     * @param colours      Per instance base colours, or null. Applied through {@link CCRenderState#colourAttrib}
+     * @param brightnesses Per instance brightness, or null to leave brightness to the state and ops
+     */
+    public void renderInstances(CCRenderState state, double[] positions, int[] colours, int[] brightnesses,
+            CCRenderState.IVertexOperation... ops) {
+        renderInstances(state, null, positions, positions.length / 3, colours, brightnesses, ops);
+    }
+
+    public void renderInstances(double[] positions, int[] colours, int[] brightnesses,
+            CCRenderState.IVertexOperation... ops) {
+        renderInstances(CCRenderState.instance(), positions, colours, brightnesses, ops);
+    }
+
+    /**
+     * Renders the model once per instance, building the pipeline only once for the whole call. Each instance's
+     * transform is applied after the transformations in ops.
+     *
+     * @param colours      Per instance base colours, or null. Applied through {@link CCRenderState#colourAttrib}
+     * @param brightnesses Per instance brightness, or null to leave brightness to the state and ops
+     */
+    public void renderInstances(CCRenderState state, Transformation[] transforms, int[] colours, int[] brightnesses,
+            CCRenderState.IVertexOperation... ops) {
+        renderInstances(state, transforms, null, transforms.length, colours, brightnesses, ops);
+    }
+
+    public void renderInstances(Transformation[] transforms, int[] colours, int[] brightnesses,
+            CCRenderState.IVertexOperation... ops) {
+        renderInstances(CCRenderState.instance(), transforms, colours, brightnesses, ops);
+    }
+
+    private void renderInstances(CCRenderState state, Transformation[] transforms, double[] positions, int count,
+            int[] colours, int[] brightnesses, CCRenderState.IVertexOperation... ops) {
+        if (count == 0) return;
+
+        ArrayList<CCRenderState.IVertexOperation> instanceOps = new ArrayList<CCRenderState.IVertexOperation>();
+        ArrayList<Transformation> baseTransforms = new ArrayList<Transformation>();
+        for (CCRenderState.IVertexOperation op : ops)
+            if (op instanceof Transformation) baseTransforms.add((Transformation) op);
+            else instanceOps.add(op);
+
+        Transformation base = null;
+        if (baseTransforms.size() == 1) base = baseTransforms.get(0);
+        else if (baseTransforms.size() > 1)
+            base = new TransformationList(baseTransforms.toArray(new Transformation[0])).compile();
+        InstanceTransformation instance = new InstanceTransformation(base);
+        instanceOps.add(instance);
+        if (colours != null && !instanceOps.contains(CCRenderState.colourAttrib))
+            instanceOps.add(CCRenderState.colourAttrib);
+
+        int baseColour = state.baseColour;
+        int brightness = state.brightness;
+        boolean hasBrightness = state.hasBrightness;
+        state.setPipeline(this, 0, verts.length, instanceOps.toArray(new CCRenderState.IVertexOperation[0]));
+        for (int i = 0; i < count; i++) {
+            if (positions != null) instance.set(null, positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]);
+            else instance.set(transforms[i], 0, 0, 0);
+            if (colours != null) state.baseColour = colours[i];
+            if (brightnesses != null) state.setBrightness(brightnesses[i]);
+            state.render();
+        }
+        state.baseColour = baseColour;
+        state.brightness = brightness;
+        state.hasBrightness = hasBrightness;
+    }
+
+    /**
+     * Finds the faces lying flush on each side of the block space and facing out of it, for
+     * {@link #renderCulled(CCRenderState, int, CCRenderState.IVertexOperation...)}. Done automatically when the vertex
+     * array is replaced, call again after moving vertices.
+     *
+     * @return The model
+     */
+    public CCModel computeCullRanges() {
+        cullRanges = findCullRanges(verts);
+        return this;
+    }
+
+    private CullRanges findCullRanges(Vertex5[] verts) {
+        int[] ranges = new int[16];
+        int n = 0;
+        int prev = -2;
+        for (int i = 0; i < verts.length; i += vp) {
+            int side = flushSide(verts, i);
+            if (side == prev) continue;
+
+            if (n == ranges.length) ranges = Arrays.copyOf(ranges, n * 2);
+            ranges[n++] = i;
+            ranges[n++] = side;
+            prev = side;
+        }
+        return new CullRanges(verts, Arrays.copyOf(ranges, n));
+    }
+
+    /**
+     * @return The block side face i lies flush on and faces out of, or -1
+     */
+    private int flushSide(Vertex5[] verts, int i) {
+        Vector3 diff1 = verts[i + 1].vec.copy().subtract(verts[i].vec);
+        Vector3 diff2 = verts[i + vp - 1].vec.copy().subtract(verts[i].vec);
+        int side = findSide(diff1.crossProduct(diff2).normalize());
+        if (side < 0) return -1;
+
+        double plane = side % 2;
+        for (int k = 0; k < vp; k++) {
+            Vector3 vec = verts[i + k].vec;
+            double d = side < 2 ? vec.y : side < 4 ? vec.z : vec.x;
+            if (Math.abs(d - plane) > 1E-5) return -1;
+        }
+        return side;
+    }
+
+    /**
+     * Renders the model, skipping faces flush on the sides in cullMask. Contiguous visible faces are rendered as one
+     * range with a single pipeline build.
+     *
+     * @param cullMask A bitmask of hidden sides, a high bit at index s skips faces on side s
+     */
+    public void renderCulled(CCRenderState state, int cullMask, CCRenderState.IVertexOperation... ops) {
+        if (cullMask == 0) {
+            render(state, 0, verts.length, ops);
+            return;
+        }
+        Vertex5[] verts = this.verts;
+        CullRanges cull = cullRanges;
+        if (cull == null || cull.verts != verts) cullRanges = cull = findCullRanges(verts);
+
+        int[] ranges = cull.ranges;
+        boolean built = false;
+        int start = -1;
+        for (int r = 0; r < ranges.length; r += 2) {
+            int side = ranges[r + 1];
+            boolean visible = side < 0 || (cullMask & 1 << side) == 0;
+            if (visible && start < 0) start = ranges[r];
+            else if (!visible && start >= 0) {
+                built = renderRange(state, start, ranges[r], built, ops);
+                start = -1;
+            }
+        }
+        if (start >= 0) renderRange(state, start, verts.length, built, ops);
+    }
+
+    /**
+     * Renders a range, building the pipeline only for the first range of a call
+     *
+     * @return True
+     */
+    private boolean renderRange(CCRenderState state, int start, int end, boolean built,
+            CCRenderState.IVertexOperation... ops) {
+        if (!built) state.setPipeline(this, start, end, ops);
+        else state.setVertexRange(start, end);
+        state.render();
+        return true;
+    }
+
+    public void renderCulled(int cullMask, CCRenderState.IVertexOperation... ops) {
+        renderCulled(CCRenderState.instance(), cullMask, ops);
+    }
+
+    /**
+     * @return A BVH of the model's faces for ray tracing, built on first use and rebuilt when the vertex array is
+     *         replaced. Call {@link #clearBVH()} after moving vertices.
+     */
+    public ModelBVH getBVH() {
+        Vertex5[] verts = this.verts;
+        Derived<ModelBVH> bvh = this.bvh;
+        if (bvh == null || bvh.verts != verts) this.bvh = bvh = new Derived<>(verts, new ModelBVH(this));
+        return bvh.value;
+    }
+
+    public void clearBVH() {
+        bvh = null;
+    }
+
+    /**
+     * @return Levels of detail of the model with the default settings, generated on first use and regenerated when the
+     *         vertex array is replaced. Generation is slow for detailed models, so call this while loading rather than
+     *         first on the render thread. Call {@link #clearLOD()} after moving vertices.
+     */
+    public ModelLOD getLOD() {
+        Vertex5[] verts = this.verts;
+        Derived<ModelLOD> lod = this.lod;
+        if (lod == null || lod.verts != verts) this.lod = lod = new Derived<>(verts, new ModelLOD(this));
+        return lod.value;
+    }
+
+    public void clearLOD() {
+        lod = null;
+    }
+
     public static CCModel quadModel(int numVerts) {
         return newModel(7, numVerts);
     }
@@ -513,13 +897,21 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
     private static final Pattern uvwPattern = Pattern.compile("vt(?: ([\\d\\.+-]+))+");
     private static final Pattern normalPattern = Pattern.compile("vn(?: ([\\d\\.+-]+))+");
     private static final Pattern polyPattern = Pattern.compile("f(?: ((?:\\d*)(?:/\\d*)?(?:/\\d*)?))+");
+    /**
+     * Shared by every caller, so not thread safe. No longer used by parseObjModels.
+     */
+    @Deprecated
     public static final Matcher vertMatcher = vertPattern.matcher("");
+    @Deprecated
     public static final Matcher uvwMatcher = uvwPattern.matcher("");
+    @Deprecated
     public static final Matcher normalMatcher = normalPattern.matcher("");
+    @Deprecated
     public static final Matcher polyMatcher = polyPattern.matcher("");
 
     /**
-     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file
+     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file. Safe to call from several
+     * threads at once.
      * 
      * @param input       An input stream to a obj file
      * @param vertexMode  The vertex mode to create the model for (GL_TRIANGLES or GL_QUADS)
@@ -529,73 +921,7 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
      */
     public static Map<String, CCModel> parseObjModels(InputStream input, int vertexMode, Transformation coordSystem)
             throws IOException {
-        if (coordSystem == null) coordSystem = new RedundantTransformation();
-        int vp = vertexMode == 7 ? 4 : 3;
-
-        HashMap<String, CCModel> modelMap = new HashMap<String, CCModel>();
-        ArrayList<Vector3> verts = new ArrayList<Vector3>();
-        ArrayList<Vector3> uvs = new ArrayList<Vector3>();
-        ArrayList<Vector3> normals = new ArrayList<Vector3>();
-        ArrayList<int[]> polys = new ArrayList<int[]>();
-        String modelName = "unnamed";
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-
-        String line;
-        while ((line = reader.readLine()) != null) {
-            line = line.replaceAll("\\s+", " ").trim();
-            if (line.startsWith("#") || line.length() == 0) continue;
-
-            if (line.startsWith("v ")) {
-                assertMatch(vertMatcher, line);
-                double[] values = parseDoubles(line.substring(2), " ");
-                illegalAssert(values.length >= 3, "Vertices must have x, y and z components");
-                Vector3 vert = new Vector3(values[0], values[1], values[2]);
-                coordSystem.apply(vert);
-                verts.add(vert);
-                continue;
-            }
-            if (line.startsWith("vt ")) {
-                assertMatch(uvwMatcher, line);
-                double[] values = parseDoubles(line.substring(3), " ");
-                illegalAssert(values.length >= 2, "Tex Coords must have u, and v components");
-                uvs.add(new Vector3(values[0], 1 - values[1], 0));
-                continue;
-            }
-            if (line.startsWith("vn ")) {
-                assertMatch(normalMatcher, line);
-                double[] values = parseDoubles(line.substring(3), " ");
-                illegalAssert(values.length >= 3, "Normals must have x, y and z components");
-                Vector3 norm = new Vector3(values[0], values[1], values[2]).normalize();
-                coordSystem.applyN(norm);
-                normals.add(norm);
-                continue;
-            }
-            if (line.startsWith("f ")) {
-                assertMatch(polyMatcher, line);
-                String[] av = line.substring(2).split(" ");
-                illegalAssert(av.length >= 3, "Polygons must have at least 3 vertices");
-                int[][] polyVerts = new int[av.length][3];
-                for (int i = 0; i < av.length; i++) {
-                    String[] as = av[i].split("/");
-                    for (int p = 0; p < as.length; p++)
-                        if (as[p].length() > 0) polyVerts[i][p] = Integer.parseInt(as[p]);
-                }
-                if (vp == 3) triangulate(polys, polyVerts);
-                else quadulate(polys, polyVerts);
-            }
-            if (line.startsWith("g ")) {
-                if (!polys.isEmpty()) {
-                    modelMap.put(modelName, createModel(verts, uvs, normals, vertexMode, polys));
-                    polys.clear();
-                }
-                modelName = line.substring(2);
-            }
-        }
-
-        if (!polys.isEmpty()) modelMap.put(modelName, createModel(verts, uvs, normals, vertexMode, polys));
-
-        return modelMap;
+        return new ObjParser(input, vertexMode, coordSystem).parse();
     }
 
     public static void triangulate(List<int[]> polys, int[][] polyVerts) {
@@ -623,7 +949,7 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
     }
 
     /**
-     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file
+     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file, cached by {@link ObjModelCache}
      * 
      * @param res The resource for the obj file
      * @return A map of group names to models
@@ -633,7 +959,7 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
     }
 
     /**
-     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file
+     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file, cached by {@link ObjModelCache}
      * 
      * @param res         The resource for the obj file
      * @param coordSystem The cooridnate system transformation to apply
@@ -641,17 +967,14 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
      */
     public static Map<String, CCModel> parseObjModels(ResourceLocation res, Transformation coordSystem) {
         try {
-            return parseObjModels(
-                    Minecraft.getMinecraft().getResourceManager().getResource(res).getInputStream(),
-                    4,
-                    coordSystem);
+            return ObjModelCache.parseObjModels(res, 4, coordSystem);
         } catch (IOException e) {
             throw new RuntimeException("failed to load model: " + res, e);
         }
     }
 
     /**
-     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file
+     * Parses vertices, texture coords, normals and polygons from a WaveFront Obj file, cached by {@link ObjModelCache}
      * 
      * @param res         The resource for the obj file
      * @param vertexMode  The vertex mode to create the model for (GL_TRIANGLES or GL_QUADS)
@@ -661,10 +984,7 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
     public static Map<String, CCModel> parseObjModels(ResourceLocation res, int vertexMode,
             Transformation coordSystem) {
         try {
-            return parseObjModels(
-                    Minecraft.getMinecraft().getResourceManager().getResource(res).getInputStream(),
-                    vertexMode,
-                    coordSystem);
+            return ObjModelCache.parseObjModels(res, vertexMode, coordSystem);
         } catch (Exception e) {
             throw new RuntimeException("failed to load model: " + res, e);
         }
@@ -693,73 +1013,178 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
         return model;
     }
 
-    private static <T> int addIndex(List<T> list, T elem) {
-        int i = list.indexOf(elem) + 1;
-        if (i == 0) {
-            list.add(elem);
-            i = list.size();
+    /**
+     * Hash index of vertex data for exportObj, numbering values from 1 in order of first use. Values match when every
+     * component is ==, like Vector3.equals and UV.equals.
+     */
+    private static class ObjIndex {
+
+        private final int components;
+        private double[] values = new double[256];
+        private int[] slots = new int[256]; // value index + 1, 0 if empty
+        private int size;
+
+        ObjIndex(int components) {
+            this.components = components;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double get(int i, int component) {
+            return values[i * components + component];
+        }
+
+        /**
+         * @return The 1 based index of the value, adding it if new. Unused components are ignored
+         */
+        int index(double a, double b, double c) {
+            // + 0.0 maps -0.0 to 0.0 as they compare equal
+            long h = Double.doubleToLongBits(a + 0.0) * 31 + Double.doubleToLongBits(b + 0.0);
+            if (components > 2) h = h * 31 + Double.doubleToLongBits(c + 0.0);
+            int mask = slots.length - 1;
+            int i = hashMix(h) & mask;
+            for (; slots[i] != 0; i = i + 1 & mask) {
+                int j = (slots[i] - 1) * components;
+                if (values[j] == a && values[j + 1] == b && (components < 3 || values[j + 2] == c)) return slots[i];
+            }
+
+            if ((size + 1) * components > values.length) values = Arrays.copyOf(values, values.length * 2);
+            values[size * components] = a;
+            values[size * components + 1] = b;
+            if (components > 2) values[size * components + 2] = c;
+            slots[i] = ++size;
+            if (size * 2 > slots.length) rehash();
+            return size;
+        }
+
+        private void rehash() {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            int mask = slots.length - 1;
+            for (int s : old) if (s != 0) {
+                int j = (s - 1) * components;
+                long h = Double.doubleToLongBits(values[j] + 0.0) * 31 + Double.doubleToLongBits(values[j + 1] + 0.0);
+                if (components > 2) h = h * 31 + Double.doubleToLongBits(values[j + 2] + 0.0);
+                int i = hashMix(h) & mask;
+                while (slots[i] != 0) i = i + 1 & mask;
+                slots[i] = s;
+            }
         }
-        return i;
     }
 
-    private static String clean(double d) {
-        return d == (int) d ? Integer.toString((int) d) : Double.toString(d);
+    /**
+     * Buffers exportObj output, formatting numbers without intermediate strings
+     */
+    private static class ObjWriter {
+
+        private static final String NEWLINE = System.lineSeparator();
+
+        private final PrintWriter p;
+        private final StringBuilder sb = new StringBuilder(8192);
+        private char[] chars = new char[0];
+
+        ObjWriter(PrintWriter p) {
+            this.p = p;
+        }
+
+        ObjWriter append(String s) {
+            sb.append(s);
+            return this;
+        }
+
+        ObjWriter append(int i) {
+            sb.append(i);
+            return this;
+        }
+
+        /**
+         * Appends a space and d, as an integer if it is one
+         */
+        ObjWriter number(double d) {
+            sb.append(' ');
+            if (d == (int) d) sb.append((int) d);
+            else sb.append(d);
+            return this;
+        }
+
+        /**
+         * Ends a line the way PrintWriter.println does
+         */
+        ObjWriter println() {
+            sb.append(NEWLINE);
+            if (sb.length() >= 8192) flush();
+            return this;
+        }
+
+        /**
+         * Ends a line with \n
+         */
+        ObjWriter newline() {
+            sb.append('\n');
+            if (sb.length() >= 8192) flush();
+            return this;
+        }
+
+        void flush() {
+            int len = sb.length();
+            if (chars.length < len) chars = new char[len];
+            sb.getChars(0, len, chars, 0);
+            p.write(chars, 0, len);
+            sb.setLength(0);
+        }
     }
 
     public static void exportObj(Map<String, CCModel> models, PrintWriter p) {
-        List<Vector3> verts = new ArrayList<Vector3>();
-        List<UV> uvs = new ArrayList<UV>();
-        List<Vector3> normals = new ArrayList<Vector3>();
-        List<int[]> polys = new ArrayList<int[]>();
+        ObjIndex verts = new ObjIndex(3);
+        ObjIndex uvs = new ObjIndex(2);
+        ObjIndex normals = new ObjIndex(3);
+        ObjWriter w = new ObjWriter(p);
+        int[] polys = new int[0];
         for (Map.Entry<String, CCModel> e : models.entrySet()) {
-            p.println("g " + e.getKey());
+            w.append("g ").append(e.getKey()).println();
             CCModel m = e.getValue();
 
             int vStart = verts.size();
             int uStart = uvs.size();
             int nStart = normals.size();
-            boolean hasNormals = m.normals() != null;
-            polys.clear();
+            Vector3[] mNormals = m.normals();
+            boolean hasNormals = mNormals != null;
+            if (polys.length < m.verts.length * 3) polys = new int[m.verts.length * 3];
 
             for (int i = 0; i < m.verts.length; i++) {
-                int[] ia = new int[hasNormals ? 3 : 2];
-                ia[0] = addIndex(verts, m.verts[i].vec);
-                ia[1] = addIndex(uvs, m.verts[i].uv);
-                if (hasNormals) ia[2] = addIndex(normals, m.normals()[i]);
-                polys.add(ia);
+                Vertex5 vert = m.verts[i];
+                polys[i * 3] = verts.index(vert.vec.x, vert.vec.y, vert.vec.z);
+                polys[i * 3 + 1] = uvs.index(vert.uv.u, vert.uv.v, 0);
+                if (hasNormals) polys[i * 3 + 2] = normals.index(mNormals[i].x, mNormals[i].y, mNormals[i].z);
             }
 
             if (vStart < verts.size()) {
-                p.println();
-                for (int i = vStart; i < verts.size(); i++) {
-                    Vector3 v = verts.get(i);
-                    p.format("v %s %s %s\n", clean(v.x), clean(v.y), clean(v.z));
-                }
+                w.println();
+                for (int i = vStart; i < verts.size(); i++)
+                    w.append("v").number(verts.get(i, 0)).number(verts.get(i, 1)).number(verts.get(i, 2)).newline();
             }
             if (uStart < uvs.size()) {
-                p.println();
-                for (int i = uStart; i < uvs.size(); i++) {
-                    UV uv = uvs.get(i);
-                    p.format("vt %s %s\n", clean(uv.u), clean(uv.v));
-                }
+                w.println();
+                for (int i = uStart; i < uvs.size(); i++)
+                    w.append("vt").number(uvs.get(i, 0)).number(uvs.get(i, 1)).newline();
             }
             if (nStart < normals.size()) {
-                p.println();
-                for (int i = nStart; i < normals.size(); i++) {
-                    Vector3 n = normals.get(i);
-                    p.format("vn %s %s %s\n", clean(n.x), clean(n.y), clean(n.z));
-                }
+                w.println();
+                for (int i = nStart; i < normals.size(); i++) w.append("vn").number(normals.get(i, 0))
+                        .number(normals.get(i, 1)).number(normals.get(i, 2)).newline();
             }
 
-            p.println();
-            for (int i = 0; i < polys.size(); i++) {
-                if (i % m.vp == 0) p.format("f");
-                int[] ia = polys.get(i);
-                if (hasNormals) p.format(" %d/%d/%d", ia[0], ia[1], ia[2]);
-                else p.format(" %d/%d", ia[0], ia[1]);
-                if (i % m.vp == m.vp - 1) p.println();
+            w.println();
+            for (int i = 0; i < m.verts.length; i++) {
+                if (i % m.vp == 0) w.append("f");
+                w.append(" ").append(polys[i * 3]).append("/").append(polys[i * 3 + 1]);
+                if (hasNormals) w.append("/").append(polys[i * 3 + 2]);
+                if (i % m.vp == m.vp - 1) w.println();
             }
         }
+        w.flush();
     }
 
     /**
@@ -1003,12 +1428,16 @@ public class CCModel implements CCRenderState.IVertexSource, Copyable<CCModel> {
     }
 
     public static int findSide(Vector3 normal) {
-        if (normal.y <= -0.99) return 0;
-        if (normal.y >= 0.99) return 1;
-        if (normal.z <= -0.99) return 2;
-        if (normal.z >= 0.99) return 3;
-        if (normal.x <= -0.99) return 4;
-        if (normal.x >= 0.99) return 5;
+        return findSide(normal.x, normal.y, normal.z);
+    }
+
+    public static int findSide(double x, double y, double z) {
+        if (y <= -0.99) return 0;
+        if (y >= 0.99) return 1;
+        if (z <= -0.99) return 2;
+        if (z >= 0.99) return 3;
+        if (x <= -0.99) return 4;
+        if (x >= 0.99) return 5;
         return -1;
     }
 
@@ -1,10 +1,20 @@
 package codechicken.lib.render;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import codechicken.lib.render.CCRenderState.IBatchVertexOperation;
 import codechicken.lib.render.CCRenderState.IVertexOperation;
 import codechicken.lib.render.CCRenderState.VertexAttribute;
+import codechicken.lib.vec.Matrix4;
+import codechicken.lib.vec.Transformation;
+import codechicken.lib.vec.TransformationList;
+import codechicken.lib.vec.VariableTransformation;
 
 @SuppressWarnings("ForLoopReplaceableByForEach")
 public class CCRenderPipeline {
@@ -44,11 +54,11 @@ public class CCRenderPipeline {
         }
 
         public void build() {
-            rebuild();
+            rebuild(RenderStats.RebuildReason.PIPELINE_CHANGED);
         }
 
         public void render() {
-            rebuild();
+            rebuild(RenderStats.RebuildReason.PIPELINE_CHANGED);
             renderState.render();
         }
     }
@@ -68,16 +78,126 @@ public class CCRenderPipeline {
         }
     }
 
+    /**
+     * Identifies a pipeline layout by the operation types and IDs, the attributes the render state requests and the
+     * attributes the model provides, which decide the dependencies attributes add. Which operations load isn't part of
+     * the key, it is checked against the cached {@link Layout} while relinking.
+     */
+    private static class LayoutKey {
+
+        int flags;
+        long modelAttribs;
+        Class<?>[] opTypes = new Class<?>[0];
+        int[] opIDs = new int[0];
+        int opCount;
+        int hash;
+
+        void set(int flags, long modelAttribs, ArrayList<IVertexOperation> ops) {
+            this.flags = flags;
+            this.modelAttribs = modelAttribs;
+            opCount = ops.size();
+            if (opTypes.length < opCount) {
+                opTypes = new Class<?>[opCount];
+                opIDs = new int[opCount];
+            }
+            int h = flags * 31 + Long.hashCode(modelAttribs);
+            for (int i = 0; i < opCount; i++) {
+                IVertexOperation op = ops.get(i);
+                opTypes[i] = op.getClass();
+                opIDs[i] = op.operationID();
+                h = h * 31 + opTypes[i].hashCode() * 17 + opIDs[i];
+            }
+            hash = h;
+        }
+
+        LayoutKey copy() {
+            LayoutKey key = new LayoutKey();
+            key.flags = flags;
+            key.modelAttribs = modelAttribs;
+            key.opTypes = Arrays.copyOf(opTypes, opCount);
+            key.opIDs = Arrays.copyOf(opIDs, opCount);
+            key.opCount = opCount;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LayoutKey)) return false;
+            LayoutKey key = (LayoutKey) o;
+            if (hash != key.hash || flags != key.flags || modelAttribs != key.modelAttribs || opCount != key.opCount)
+                return false;
+            for (int i = 0; i < opCount; i++)
+                if (opTypes[i] != key.opTypes[i] || opIDs[i] != key.opIDs[i]) return false;
+            return true;
+        }
+    }
+
+    /**
+     * A sorted layout. Each entry is an index into pipelineOps or -(attributeIndex + 1) for an attribute added as a
+     * dependency
+     */
+    private static class Layout {
+
+        final int[] sorted;
+        /**
+         * Operations that were queued but didn't load, encoded as in sorted
+         */
+        final int[] rejected;
+
+        Layout(int[] sorted, int[] rejected) {
+            this.sorted = sorted;
+            this.rejected = rejected;
+        }
+    }
+
+    public static final int LAYOUT_CACHE_SIZE = 64;
+
     private final ArrayList<VertexAttribute> attribs = new ArrayList<>();
+    private boolean[] activeAttribs = new boolean[0];
     private final ArrayList<IVertexOperation> ops = new ArrayList<>();
+    /**
+     * ops with each run of adjacent transformations collapsed into one of the matrices in collapsed
+     */
+    private final ArrayList<IVertexOperation> pipelineOps = new ArrayList<>();
+    private final ArrayList<Matrix4> collapsed = new ArrayList<>();
+    private final ArrayList<IVertexOperation> loadQueue = new ArrayList<>();
     private final ArrayList<PipelineNode> nodes = new ArrayList<>();
     private final ArrayList<IVertexOperation> sorted = new ArrayList<>();
+    private final ArrayList<IVertexOperation> rejected = new ArrayList<>();
+    private PipelineCompiler.CompiledPipeline compiled;
+    private IVertexOperation[] compiledOps = new IVertexOperation[0];
     private PipelineNode loading;
+    /**
+     * Set while re-loading operations against a cached layout. Dependencies are already known, so requests are only
+     * checked against the layout
+     */
+    private Layout relinking;
+    /**
+     * Set when an operation loaded while relinking requests a dependency the cached layout doesn't provide
+     */
+    private boolean relinkFailed;
+
+    private final LinkedHashMap<LayoutKey, Layout> layoutCache = new LinkedHashMap<LayoutKey, Layout>(16, 0.75F, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LayoutKey, Layout> eldest) {
+            return size() > LAYOUT_CACHE_SIZE;
+        }
+    };
+    private final LayoutKey lookupKey = new LayoutKey();
+    private int cacheHits;
+    private int cacheMisses;
 
     public void setPipeline(IVertexOperation... ops) {
         this.ops.clear();
         for (int i = 0; i < ops.length; i++) this.ops.add(ops[i]);
-        rebuild();
+        rebuild(RenderStats.RebuildReason.PIPELINE_CHANGED);
     }
 
     public void reset() {
@@ -86,55 +206,327 @@ public class CCRenderPipeline {
     }
 
     private void unbuild() {
-        for (int i = 0; i < attribs.size(); i++) attribs.get(i).active = false;
+        for (int i = 0; i < attribs.size(); i++) setActive(attribs.get(i), false);
         attribs.clear();
         sorted.clear();
+        compiled = null;
     }
 
     public void rebuild() {
+        rebuild(RenderStats.RebuildReason.EXPLICIT);
+    }
+
+    void rebuild(RenderStats.RebuildReason reason) {
         if (ops.isEmpty() || this.renderState.model == null) return;
+        if (RenderStats.ENABLED) renderState.stats.rebuild(reason);
+        collapseTransformations();
+
+        boolean cacheable = pipelineOps.size() <= 64;
+        if (cacheable) {
+            computeKey();
+            Layout layout = layoutCache.get(lookupKey);
+            if (layout != null && relink(layout)) {
+                cacheHits++;
+                if (PipelineCompiler.ENABLED) compile();
+                return;
+            }
+        }
+
+        cacheMisses++;
+        if (RenderStats.ENABLED) renderState.stats.fullBuild();
+        build();
+        if (cacheable) layoutCache.put(lookupKey.copy(), layout());
+        if (PipelineCompiler.ENABLED) compile();
+    }
+
+    private void compile() {
+        compiled = PipelineCompiler.compile(sorted);
+        if (compiled != null) compiledOps = sorted.toArray(compiledOps);
+    }
+
+    /**
+     * Copies ops into pipelineOps, replacing each run of two or more adjacent transformations with a single matrix and
+     * a lone TransformationList with its compiled matrix. Transformations share an operation ID, so without this only
+     * one transformation in the run would be applied.
+     */
+    private void collapseTransformations() {
+        pipelineOps.clear();
+        int matrices = 0;
+        for (int i = 0; i < ops.size(); i++) {
+            IVertexOperation op = ops.get(i);
+            int end = i;
+            while (end < ops.size() && isCollapsible(ops.get(end))) end++;
+
+            if (end - i < 2) {
+                if (op instanceof TransformationList && !((TransformationList) op).isRedundant())
+                    op = ((TransformationList) op).compile();
+                pipelineOps.add(op);
+                continue;
+            }
+
+            if (matrices == collapsed.size()) collapsed.add(new Matrix4());
+            Matrix4 mat = collapsed.get(matrices++).setIdentity();
+            for (int j = end - 1; j >= i; j--) ((Transformation) ops.get(j)).apply(mat);
+            pipelineOps.add(mat);
+            i = end - 1;
+        }
+    }
+
+    /**
+     * @return True if op can be folded into a matrix. VariableTransformations are excluded as their matrix may not
+     *         describe apply
+     */
+    private static boolean isCollapsible(IVertexOperation op) {
+        return op instanceof Transformation && !(op instanceof VariableTransformation);
+    }
+
+    private void computeKey() {
+        CCRenderState state = this.renderState;
+        int flags = (state.useNormals ? 1 : 0) | (state.useColour ? 2 : 0) | (state.computeLighting ? 4 : 0);
+        // attributes past 64 are left to the dependency checks in relink
+        long modelAttribs = 0;
+        for (int i = 0; i < Math.min(CCRenderState.attributeCount(), 64); i++)
+            if (state.model.hasAttribute(CCRenderState.getAttribute(i))) modelAttribs |= 1L << i;
+        lookupKey.set(flags, modelAttribs, pipelineOps);
+    }
+
+    /**
+     * Restores a cached layout, loading each operation once in sorted order so attributes bind the current model's
+     * arrays
+     *
+     * @return false if an operation in the layout no longer loads, a rejected one now does or one requests a dependency
+     *         the layout lacks, and a full build is required
+     */
+    private boolean relink(Layout layout) {
+        unbuild();
+        relinking = layout;
+        relinkFailed = false;
+        try {
+            for (int i = 0; i < layout.rejected.length; i++) if (decode(layout.rejected[i]).load(renderState)) {
+                unbuild();
+                return false;
+            }
+
+            for (int i = 0; i < layout.sorted.length; i++) {
+                IVertexOperation op = decode(layout.sorted[i]);
+                if (!op.load(renderState) || relinkFailed) {
+                    unbuild();
+                    return false;
+                }
+                if (op instanceof VertexAttribute) {
+                    attribs.add((VertexAttribute) op);
+                    setActive((VertexAttribute) op, true);
+                }
+                sorted.add(op);
+            }
+        } finally {
+            relinking = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if attrib precedes the operation being relinked in the layout, or was rejected by it
+     */
+    private boolean relinked(VertexAttribute<?> attrib) {
+        if (isActive(attrib)) return true;
+        int e = -attrib.attributeIndex - 1;
+        for (int i = 0; i < relinking.rejected.length; i++) if (relinking.rejected[i] == e) return true;
+        return false;
+    }
+
+    private IVertexOperation decode(int e) {
+        return e >= 0 ? pipelineOps.get(e) : CCRenderState.getAttribute(-e - 1);
+    }
+
+    private int encode(IVertexOperation op) {
+        int index = indexOf(pipelineOps, op);
+        return index >= 0 ? index : -((VertexAttribute) op).attributeIndex - 1;
+    }
+
+    private Layout layout() {
+        int[] layout = new int[sorted.size()];
+        for (int i = 0; i < layout.length; i++) layout[i] = encode(sorted.get(i));
+        int[] rejects = new int[rejected.size()];
+        for (int i = 0; i < rejects.length; i++) rejects[i] = encode(rejected.get(i));
+        return new Layout(layout, rejects);
+    }
+
+    private static int indexOf(ArrayList<IVertexOperation> list, IVertexOperation op) {
+        for (int i = 0; i < list.size(); i++) if (list.get(i) == op) return i;
+        return -1;
+    }
 
+    private void build() {
         // ensure enough nodes for all ops
         while (nodes.size() < this.renderState.operationCount()) nodes.add(new PipelineNode());
         unbuild();
 
+        loadQueue.clear();
+        rejected.clear();
+        loadQueue.addAll(pipelineOps);
         if (this.renderState.useNormals) addAttribute(this.renderState.normalAttrib);
         if (this.renderState.useColour) addAttribute(this.renderState.colourAttrib);
         if (this.renderState.computeLighting) addAttribute(this.renderState.lightingAttrib);
 
-        for (int i = 0; i < ops.size(); i++) {
-            IVertexOperation op = ops.get(i);
+        for (int i = 0; i < loadQueue.size(); i++) {
+            IVertexOperation op = loadQueue.get(i);
             loading = nodes.get(op.operationID());
             boolean loaded = op.load(renderState);
             if (loaded) loading.op = op;
+            else rejected.add(op);
 
             if (op instanceof VertexAttribute) if (loaded) attribs.add((VertexAttribute) op);
-            else((VertexAttribute) op).active = false;
+            else setActive((VertexAttribute) op, false);
         }
 
         for (int i = 0; i < nodes.size(); i++) nodes.get(i).add();
     }
 
+    /**
+     * @return The number of rebuilds that reused a cached layout
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return The number of rebuilds that had to load and sort the full pipeline
+     */
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public void resetCacheStats() {
+        cacheHits = cacheMisses = 0;
+    }
+
+    public void clearCache() {
+        layoutCache.clear();
+    }
+
     public void addRequirement(int opRef) {
+        if (relinking != null) return;
         loading.deps.add(nodes.get(opRef));
     }
 
     public void addDependency(VertexAttribute attrib) {
+        if (relinking != null) {
+            if (!relinked(attrib)) relinkFailed = true;
+            return;
+        }
         loading.deps.add(nodes.get(attrib.operationID()));
         addAttribute(attrib);
     }
 
     public void addAttribute(VertexAttribute attrib) {
-        if (!attrib.active) {
-            ops.add(attrib);
-            attrib.active = true;
+        if (relinking != null) {
+            if (!relinked(attrib)) relinkFailed = true;
+            return;
         }
+        if (!isActive(attrib)) {
+            loadQueue.add(attrib);
+            setActive(attrib, true);
+        }
+    }
+
+    /**
+     * @return True if attrib is part of this pipeline
+     */
+    public boolean isActive(VertexAttribute<?> attrib) {
+        return attrib.attributeIndex < activeAttribs.length && activeAttribs[attrib.attributeIndex];
+    }
+
+    @SuppressWarnings("deprecation")
+    private void setActive(VertexAttribute<?> attrib, boolean active) {
+        if (attrib.attributeIndex >= activeAttribs.length)
+            activeAttribs = Arrays.copyOf(activeAttribs, attrib.attributeIndex + 1);
+        activeAttribs[attrib.attributeIndex] = active;
+        attrib.active = active; // legacy mirror
     }
 
     public void operate() {
+        if (RenderStats.ENABLED && renderState.stats.sample(1)) {
+            operateTimed();
+            return;
+        }
+        if (compiled != null) {
+            compiled.operate(renderState, compiledOps);
+            return;
+        }
         for (int i = 0; i < sorted.size(); i++) sorted.get(i).operate(renderState);
     }
 
+    private void operateTimed() {
+        RenderStats stats = renderState.stats;
+        for (int i = 0; i < sorted.size(); i++) {
+            IVertexOperation op = sorted.get(i);
+            long start = System.nanoTime();
+            op.operate(renderState);
+            stats.addOperationTime(op, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return True if the built pipeline was compiled by {@link PipelineCompiler}
+     */
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+
+    /**
+     * @return True if every operation in the built pipeline implements IBatchVertexOperation and declares operateBatch
+     *         no higher in its hierarchy than operate
+     */
+    public boolean canBatch() {
+        for (int i = 0; i < sorted.size(); i++) if (!canBatch(sorted.get(i))) return false;
+        return true;
+    }
+
+    private static final Map<Class<?>, Boolean> batchable = new ConcurrentHashMap<>();
+
+    private static boolean canBatch(IVertexOperation op) {
+        return op instanceof IBatchVertexOperation
+                && batchable.computeIfAbsent(op.getClass(), CCRenderPipeline::declaresOperateBatch);
+    }
+
+    /**
+     * A subclass that overrides operate but inherits operateBatch would have its override skipped when batched
+     */
+    private static boolean declaresOperateBatch(Class<?> type) {
+        try {
+            Method batch = type.getMethod("operateBatch", CCRenderState.class, VertexBatch.class);
+            Method operate = type.getMethod("operate", CCRenderState.class);
+            if (operate.isDefault()) operate = type.getMethod("operate");
+            return operate.getDeclaringClass().isAssignableFrom(batch.getDeclaringClass());
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public void operateBatch(VertexBatch batch) {
+        if (RenderStats.ENABLED && renderState.stats.sample(batch.count)) {
+            operateBatchTimed(batch);
+            return;
+        }
+        if (compiled != null) {
+            compiled.operateBatch(renderState, batch, compiledOps);
+            return;
+        }
+        for (int i = 0; i < sorted.size(); i++)
+            ((IBatchVertexOperation) sorted.get(i)).operateBatch(renderState, batch);
+    }
+
+    private void operateBatchTimed(VertexBatch batch) {
+        RenderStats stats = renderState.stats;
+        for (int i = 0; i < sorted.size(); i++) {
+            IVertexOperation op = sorted.get(i);
+            long start = System.nanoTime();
+            ((IBatchVertexOperation) op).operateBatch(renderState, batch);
+            stats.addOperationTime(op, System.nanoTime() - start);
+        }
+    }
+
     public PipelineBuilder builder() {
         ops.clear();
         return builder;
@@ -1,10 +1,11 @@
 package codechicken.lib.render;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.OpenGlHelper;
-import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.util.ResourceLocation;
 import net.minecraft.world.IBlockAccess;
 
@@ -27,11 +28,16 @@ import codechicken.lib.vec.Vector3;
 public class CCRenderState {
 
     public final CCRenderPipeline pipeline;
+    /**
+     * Only updated when {@link RenderStats#ENABLED}
+     */
+    public final RenderStats stats = new RenderStats();
 
     private static final ThreadLocal<CCRenderState> instances = ThreadLocal.withInitial(CCRenderState::new);
 
     private CCRenderState() {
         pipeline = new CCRenderPipeline(this);
+        batch.state = this;
     }
 
     public static CCRenderState instance() {
@@ -87,6 +93,20 @@ public class CCRenderState {
         int operationID();
     }
 
+    /**
+     * An operation that can also process a whole range of vertices at once. When every operation in the pipeline
+     * implements this, {@link #render()} gathers the range into a {@link VertexBatch} and runs each operation once over
+     * it instead of running the whole pipeline once per vertex. Operations whose operate is overridden below the class
+     * declaring operateBatch are run per vertex instead.
+     */
+    public interface IBatchVertexOperation extends IVertexOperation {
+
+        /**
+         * Perform the operation on vertices 0 until batch.count. Model attribute arrays are indexed by batch.first + i
+         */
+        void operateBatch(CCRenderState state, VertexBatch batch);
+    }
+
     private static ArrayList<VertexAttribute<?>> vertexAttributes = new ArrayList<>();
 
     private static int registerVertexAttribute(VertexAttribute<?> attr) {
@@ -98,6 +118,10 @@ public class CCRenderState {
         return vertexAttributes.get(index);
     }
 
+    public static int attributeCount() {
+        return vertexAttributes.size();
+    }
+
     /**
      * Management class for a vertex attrute such as colour, normal etc This class should handle the loading of the
      * attrute from an array provided by IVertexSource.getAttributes or the computation of this attrute from others
@@ -109,9 +133,12 @@ public class CCRenderState {
         public final int attributeIndex = registerVertexAttribute(this);
         private final int operationIndex = registerOperation();
         /**
-         * Set to true when the attrute is part of the pipeline. Should only be managed by CCRenderState when
-         * constructing the pipeline
+         * Set to true when the attrute is part of the pipeline. Mirrors the last pipeline built on any thread, so it is
+         * unreliable when several threads render at once.
+         *
+         * @deprecated Use {@link #isActive(CCRenderState)}
          */
+        @Deprecated
         public boolean active = false;
 
         /**
@@ -119,12 +146,21 @@ public class CCRenderState {
          */
         public abstract T newArray(int length);
 
+        /**
+         * @return True if this attribute is part of the pipeline currently built for state
+         */
+        public boolean isActive(CCRenderState state) {
+            return state.pipeline.isActive(this);
+        }
+
         @Override
         public int operationID() {
             return operationIndex;
         }
     }
 
+    private abstract static class BatchVertexAttribute<T> extends VertexAttribute<T> implements IBatchVertexOperation {}
+
     public static void arrayCopy(Object src, int srcPos, Object dst, int destPos, int length) {
         System.arraycopy(src, srcPos, dst, destPos, length);
         if (dst instanceof Copyable[]) {
@@ -136,7 +172,7 @@ public class CCRenderState {
 
     public static <T> T copyOf(VertexAttribute<T> attr, T src, int length) {
         T dst = attr.newArray(length);
-        arrayCopy(src, 0, dst, 0, ((Object[]) src).length);
+        arrayCopy(src, 0, dst, 0, Math.min(Array.getLength(src), length));
         return dst;
     }
 
@@ -144,6 +180,13 @@ public class CCRenderState {
 
         Vertex5[] getVertices();
 
+        /**
+         * @return The number of vertices, without creating getVertices() for sources that build it on demand
+         */
+        default int getVertexCount() {
+            return getVertices().length;
+        }
+
         /**
          * Gets an array of vertex attrutes
          * 
@@ -164,14 +207,44 @@ public class CCRenderState {
          */
         void prepareVertex(CCRenderState state);
 
+        /**
+         * @return Single precision copies of getVertices() for {@link CCRenderState#useFloats}, or null if not
+         *         available
+         */
+        default Vertex5f[] getFloatVertices() {
+            return null;
+        }
+
+        /**
+         * Copies the positions, UVs and tex indices of the batch's vertex range into batch, for sources with flat
+         * storage
+         *
+         * @return False if unsupported, in which case the batch is loaded from getVertices()
+         */
+        default boolean fillBatch(VertexBatch batch) {
+            return false;
+        }
+
+        /**
+         * @return True if {@link #fillBatch(VertexAttribute, VertexBatch)} supports attr. The attribute then doesn't
+         *         request its array from getAttributes unless rendering per vertex
+         */
+        default boolean canFillBatch(VertexAttribute<?> attr) {
+            return false;
+        }
+
+        /**
+         * Copies the values of attr for the batch's vertex range into batch, for sources with flat storage. Only called
+         * if canFillBatch(attr) is true
+         */
+        default void fillBatch(VertexAttribute<?> attr, VertexBatch batch) {}
+
         default void prepareVertex() {
             prepareVertex(CCRenderState.instance());
         }
     }
 
-    public static VertexAttribute<Vector3[]> normalAttrib = new VertexAttribute<>() {
-
-        private Vector3[] normalRef;
+    public static VertexAttribute<Vector3[]> normalAttrib = new BatchVertexAttribute<>() {
 
         @Override
         public Vector3[] newArray(int length) {
@@ -180,9 +253,9 @@ public class CCRenderState {
 
         @Override
         public boolean load(CCRenderState state) {
-            normalRef = state.model.getAttributes(this);
-            if (state.model.hasAttribute(this)) return normalRef != null;
+            if (state.model.hasAttribute(this)) return state.bindModelAttribute(this);
 
+            state.bindAttribute(this, null);
             if (state.model.hasAttribute(sideAttrib)) {
                 state.pipeline.addDependency(sideAttrib);
                 return true;
@@ -193,13 +266,26 @@ public class CCRenderState {
 
         @Override
         public void operate(CCRenderState state) {
+            Vector3[] normalRef = state.getBoundAttribute(this);
             if (normalRef != null) state.setNormal(normalRef[state.vertexIndex]);
             else state.setNormal(Rotation.axes[state.side]);
         }
-    };
-    public static VertexAttribute<int[]> colourAttrib = new VertexAttribute<>() {
 
-        private int[] colourRef;
+        @Override
+        public void operateBatch(CCRenderState state, VertexBatch batch) {
+            state.hasNormal = true;
+            if (state.isDeferred(this)) {
+                state.model.fillBatch(this, batch);
+                return;
+            }
+
+            Vector3[] normalRef = state.getBoundAttribute(this);
+            for (int i = 0; i < batch.count; i++) {
+                batch.setNormal(i, normalRef != null ? normalRef[batch.first + i] : Rotation.axes[batch.side[i]]);
+            }
+        }
+    };
+    public static VertexAttribute<int[]> colourAttrib = new BatchVertexAttribute<>() {
 
         @Override
         public int[] newArray(int length) {
@@ -208,19 +294,28 @@ public class CCRenderState {
 
         @Override
         public boolean load(CCRenderState state) {
-            colourRef = state.model.getAttributes(this);
+            int[] colourRef = state.bindAttribute(this, state.model.getAttributes(this));
             return colourRef != null || !state.model.hasAttribute(this);
         }
 
         @Override
         public void operate(CCRenderState state) {
+            int[] colourRef = state.getBoundAttribute(this);
             if (colourRef != null) state.setColour(ColourRGBA.multiply(state.baseColour, colourRef[state.vertexIndex]));
             else state.setColour(state.baseColour);
         }
-    };
-    public static VertexAttribute<int[]> lightingAttrib = new VertexAttribute<>() {
 
-        private int[] colourRef;
+        @Override
+        public void operateBatch(CCRenderState state, VertexBatch batch) {
+            int[] colourRef = state.getBoundAttribute(this);
+            int[] colour = batch.colour;
+            if (colourRef != null) for (int i = 0; i < batch.count; i++)
+                colour[i] = ColourRGBA.multiply(state.baseColour, colourRef[batch.first + i]);
+            else Arrays.fill(colour, 0, batch.count, state.baseColour);
+            state.hasColour = true;
+        }
+    };
+    public static VertexAttribute<int[]> lightingAttrib = new BatchVertexAttribute<>() {
 
         @Override
         public int[] newArray(int length) {
@@ -231,7 +326,7 @@ public class CCRenderState {
         public boolean load(CCRenderState state) {
             if (!state.computeLighting || !state.useColour || !state.model.hasAttribute(this)) return false;
 
-            colourRef = state.model.getAttributes(this);
+            int[] colourRef = state.bindAttribute(this, state.model.getAttributes(this));
             if (colourRef != null) {
                 state.pipeline.addDependency(colourAttrib);
                 return true;
@@ -241,12 +336,20 @@ public class CCRenderState {
 
         @Override
         public void operate(CCRenderState state) {
+            int[] colourRef = state.getBoundAttribute(this);
             state.setColour(ColourRGBA.multiply(state.colour, colourRef[state.vertexIndex]));
         }
-    };
-    public static VertexAttribute<int[]> sideAttrib = new VertexAttribute<>() {
 
-        private int[] sideRef;
+        @Override
+        public void operateBatch(CCRenderState state, VertexBatch batch) {
+            int[] colourRef = state.getBoundAttribute(this);
+            int[] colour = batch.colour;
+            for (int i = 0; i < batch.count; i++)
+                colour[i] = ColourRGBA.multiply(colour[i], colourRef[batch.first + i]);
+            state.hasColour = true;
+        }
+    };
+    public static VertexAttribute<int[]> sideAttrib = new BatchVertexAttribute<>() {
 
         @Override
         public int[] newArray(int length) {
@@ -255,7 +358,7 @@ public class CCRenderState {
 
         @Override
         public boolean load(CCRenderState state) {
-            sideRef = state.model.getAttributes(this);
+            int[] sideRef = state.bindAttribute(this, state.model.getAttributes(this));
             if (state.model.hasAttribute(this)) return sideRef != null;
 
             state.pipeline.addDependency(normalAttrib);
@@ -264,18 +367,22 @@ public class CCRenderState {
 
         @Override
         public void operate(CCRenderState state) {
+            int[] sideRef = state.getBoundAttribute(this);
             if (sideRef != null) state.side = sideRef[state.vertexIndex];
             else state.side = CCModel.findSide(state.normal);
         }
+
+        @Override
+        public void operateBatch(CCRenderState state, VertexBatch batch) {
+            int[] sideRef = state.getBoundAttribute(this);
+            if (sideRef != null) System.arraycopy(sideRef, batch.first, batch.side, 0, batch.count);
+            else for (int i = 0; i < batch.count; i++) batch.side[i] = CCModel.findSide(batch.getNormal(i, batch.vec));
+        }
     };
     /**
      * Uses the position of the lightmatrix to compute LC if not provided
      */
-    public static VertexAttribute<LC[]> lightCoordAttrib = new VertexAttribute<>() {
-
-        private LC[] lcRef;
-        private final Vector3 vec = new Vector3(); // for computation
-        private final Vector3 pos = new Vector3();
+    public static VertexAttribute<LC[]> lightCoordAttrib = new BatchVertexAttribute<>() {
 
         @Override
         public LC[] newArray(int length) {
@@ -284,10 +391,10 @@ public class CCRenderState {
 
         @Override
         public boolean load(CCRenderState state) {
-            lcRef = state.model.getAttributes(this);
-            if (state.model.hasAttribute(this)) return lcRef != null;
+            if (state.model.hasAttribute(this)) return state.bindModelAttribute(this);
 
-            pos.set(state.lightMatrix.pos.x, state.lightMatrix.pos.y, state.lightMatrix.pos.z);
+            state.bindAttribute(this, null);
+            state.lcPos.set(state.lightMatrix.pos.x, state.lightMatrix.pos.y, state.lightMatrix.pos.z);
             state.pipeline.addDependency(sideAttrib);
             state.pipeline.addRequirement(Transformation.operationIndex);
             return true;
@@ -295,8 +402,23 @@ public class CCRenderState {
 
         @Override
         public void operate(CCRenderState state) {
+            LC[] lcRef = state.getBoundAttribute(this);
             if (lcRef != null) state.lc.set(lcRef[state.vertexIndex]);
-            else state.lc.compute(vec.set(state.vert.vec).sub(pos), state.side);
+            else state.lc.compute(state.lcVec.set(state.vert.vec).sub(state.lcPos), state.side);
+        }
+
+        @Override
+        public void operateBatch(CCRenderState state, VertexBatch batch) {
+            if (state.isDeferred(this)) {
+                state.model.fillBatch(this, batch);
+                return;
+            }
+
+            LC[] lcRef = state.getBoundAttribute(this);
+            if (lcRef != null) for (int i = 0; i < batch.count; i++) batch.lc[i].set(lcRef[batch.first + i]);
+            else for (int i = 0; i < batch.count; i++) batch.lc[i].compute(
+                    batch.getPosition(i, state.lcVec).sub(state.lcPos),
+                    batch.side[i]);
         }
     };
 
@@ -330,6 +452,24 @@ public class CCRenderState {
     public int side;
     public LC lc = new LC();
 
+    /**
+     * Set to false to force per vertex pipeline execution
+     */
+    public boolean useBatching = true;
+    /**
+     * Set to true to run batched pipelines in single precision, reading {@link IVertexSource#getFloatVertices()} where
+     * available. Positions far from the origin lose precision, so only use this for model space rendering
+     */
+    public boolean useFloats;
+    public final VertexBatch batch = new VertexBatch();
+    private IVertexSink vertexSink = TessellatorVertexSink.instance;
+
+    // attribute bindings, indexed by VertexAttribute.attributeIndex
+    private static final Object DEFERRED = new Object();
+    private Object[] attributeBindings = new Object[vertexAttributes.size()];
+    private final Vector3 lcPos = new Vector3();
+    private final Vector3 lcVec = new Vector3(); // for computation
+
     public void reset() {
         model = null;
         pipeline.reset();
@@ -338,6 +478,52 @@ public class CCRenderState {
         baseColour = alphaOverride = -1;
     }
 
+    /**
+     * Stores the array loaded for attr by the current pipeline. Attributes keep their per-model references here rather
+     * than in their own fields so each thread's CCRenderState has an independent pipeline.
+     *
+     * @return ref
+     */
+    public <T> T bindAttribute(VertexAttribute<T> attr, T ref) {
+        if (attr.attributeIndex >= attributeBindings.length)
+            attributeBindings = Arrays.copyOf(attributeBindings, vertexAttributes.size());
+        attributeBindings[attr.attributeIndex] = ref;
+        return ref;
+    }
+
+    /**
+     * Binds the model's array for attr, or defers fetching it if the model can fill batches with attr directly
+     *
+     * @return True if the model provides attr
+     */
+    public <T> boolean bindModelAttribute(VertexAttribute<T> attr) {
+        if (!model.canFillBatch(attr)) return bindAttribute(attr, model.getAttributes(attr)) != null;
+
+        bindAttribute(attr, null);
+        attributeBindings[attr.attributeIndex] = DEFERRED;
+        return true;
+    }
+
+    /**
+     * @return True if attr was bound by bindModelAttribute without fetching its array, batched operations should use
+     *         {@link IVertexSource#fillBatch(VertexAttribute, VertexBatch)}
+     */
+    public boolean isDeferred(VertexAttribute<?> attr) {
+        return attr.attributeIndex < attributeBindings.length && attributeBindings[attr.attributeIndex] == DEFERRED;
+    }
+
+    /**
+     * @return The array bound for attr by bindAttribute, or null if none. Deferred arrays are fetched from the model
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getBoundAttribute(VertexAttribute<T> attr) {
+        if (attr.attributeIndex >= attributeBindings.length) return null;
+
+        Object ref = attributeBindings[attr.attributeIndex];
+        if (ref == DEFERRED) attributeBindings[attr.attributeIndex] = ref = model.getAttributes(attr);
+        return (T) ref;
+    }
+
     public void setPipeline(IVertexOperation... ops) {
         pipeline.setPipeline(ops);
     }
@@ -361,7 +547,8 @@ public class CCRenderState {
     public void bindModel(IVertexSource model) {
         if (this.model != model) {
             this.model = model;
-            pipeline.rebuild();
+            if (RenderStats.ENABLED) stats.modelBound();
+            pipeline.rebuild(RenderStats.RebuildReason.MODEL_CHANGED);
         }
     }
 
@@ -371,7 +558,7 @@ public class CCRenderState {
     }
 
     public void setModel(IVertexSource source) {
-        setModel(source, 0, source.getVertices().length);
+        setModel(source, 0, source.getVertexCount());
     }
 
     @Deprecated
@@ -410,6 +597,12 @@ public class CCRenderState {
     }
 
     public void render() {
+        if (useBatching && pipeline.canBatch()) {
+            renderBatch();
+            return;
+        }
+
+        if (RenderStats.ENABLED) stats.addVertices(lastVertexIndex - firstVertexIndex);
         Vertex5[] verts = model.getVertices();
         for (vertexIndex = firstVertexIndex; vertexIndex < lastVertexIndex; vertexIndex++) {
             model.prepareVertex(this);
@@ -419,6 +612,44 @@ public class CCRenderState {
         }
     }
 
+    /**
+     * Renders the vertex range by running each operation once over the whole range. The pipeline must satisfy
+     * {@link CCRenderPipeline#canBatch()}. prepareVertex is still called per vertex and may set side, but all calls
+     * happen before the pipeline runs, so operations must read side from the batch or call
+     * {@link VertexBatch#select(int)}.
+     */
+    public void renderBatch() {
+        VertexBatch b = batch;
+        b.floats = useFloats;
+        b.first = firstVertexIndex;
+        b.count = Math.max(lastVertexIndex - firstVertexIndex, 0);
+        b.ensureCapacity(b.count);
+        if (RenderStats.ENABLED) stats.addVertices(b.count);
+        boolean filled = model.fillBatch(b);
+        Vertex5[] verts = null;
+        Vertex5f[] fverts = null;
+        if (!filled) {
+            fverts = useFloats ? model.getFloatVertices() : null;
+            if (fverts != null && fverts.length != model.getVertexCount()) fverts = null; // stale
+            if (fverts == null) verts = model.getVertices();
+        }
+        for (vertexIndex = firstVertexIndex; vertexIndex < lastVertexIndex; vertexIndex++) {
+            model.prepareVertex(this);
+            if (filled) b.loadState(vertexIndex - b.first, this);
+            else if (fverts != null) b.load(vertexIndex - b.first, fverts[vertexIndex], this);
+            else b.load(vertexIndex - b.first, verts[vertexIndex], this);
+        }
+
+        pipeline.operateBatch(b);
+
+        for (int i = 0; i < b.count; i++) {
+            vertexIndex = b.first + i;
+            b.store(i, this);
+            writeVert();
+        }
+        vertexIndex = lastVertexIndex;
+    }
+
     @Deprecated
     public static void renderStatic() {
         instance().render();
@@ -434,14 +665,18 @@ public class CCRenderState {
     }
 
     public void writeVert() {
-        if (hasNormal) Tessellator.instance.setNormal((float) normal.x, (float) normal.y, (float) normal.z);
-        if (hasColour) Tessellator.instance.setColorRGBA(
-                colour >>> 24,
-                colour >> 16 & 0xFF,
-                colour >> 8 & 0xFF,
-                alphaOverride >= 0 ? alphaOverride : colour & 0xFF);
-        if (hasBrightness) Tessellator.instance.setBrightness(brightness);
-        Tessellator.instance.addVertexWithUV(vert.vec.x, vert.vec.y, vert.vec.z, vert.uv.u, vert.uv.v);
+        IVertexSink sink = vertexSink;
+        if (hasNormal) sink.setNormal((float) normal.x, (float) normal.y, (float) normal.z);
+        if (hasColour) sink.setColour(outputColour(colour));
+        if (hasBrightness) sink.setBrightness(brightness);
+        sink.addVertex(vert.vec.x, vert.vec.y, vert.vec.z, vert.uv.u, vert.uv.v);
+    }
+
+    /**
+     * @return colour with alphaOverride applied
+     */
+    int outputColour(int colour) {
+        return alphaOverride >= 0 ? colour & 0xFFFFFF00 | Math.min(alphaOverride, 255) : colour;
     }
 
     @Deprecated
@@ -532,13 +767,9 @@ public class CCRenderState {
     }
 
     public void startDrawing(int mode) {
-        Tessellator.instance.startDrawing(mode);
-        if (hasColour) Tessellator.instance.setColorRGBA(
-                colour >>> 24,
-                colour >> 16 & 0xFF,
-                colour >> 8 & 0xFF,
-                alphaOverride >= 0 ? alphaOverride : colour & 0xFF);
-        if (hasBrightness) Tessellator.instance.setBrightness(brightness);
+        vertexSink.startDrawing(mode);
+        if (hasColour) vertexSink.setColour(outputColour(colour));
+        if (hasBrightness) vertexSink.setBrightness(brightness);
     }
 
     @Deprecated
@@ -547,6 +778,18 @@ public class CCRenderState {
     }
 
     public void draw() {
-        Tessellator.instance.draw();
+        vertexSink.draw();
+    }
+
+    /**
+     * Redirects all vertices written by this state to sink, eg. a {@link PackedVertexSink} owned by a chunk thread.
+     * Defaults to {@link TessellatorVertexSink}
+     */
+    public void setVertexSink(IVertexSink sink) {
+        vertexSink = sink == null ? TessellatorVertexSink.instance : sink;
+    }
+
+    public IVertexSink getVertexSink() {
+        return vertexSink;
     }
 }
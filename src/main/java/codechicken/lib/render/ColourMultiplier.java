@@ -2,7 +2,7 @@ package codechicken.lib.render;
 
 import codechicken.lib.colour.ColourRGBA;
 
-public class ColourMultiplier implements CCRenderState.IVertexOperation {
+public class ColourMultiplier implements CCRenderState.IBatchVertexOperation {
 
     private static final ThreadLocal<ColourMultiplier> instances = ThreadLocal
             .withInitial(() -> new ColourMultiplier(-1));
@@ -36,6 +36,13 @@ public class ColourMultiplier implements CCRenderState.IVertexOperation {
         state.setColour(ColourRGBA.multiply(state.colour, colour));
     }
 
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        int[] colours = batch.colour;
+        for (int i = 0; i < batch.count; i++) colours[i] = ColourRGBA.multiply(colours[i], colour);
+        state.hasColour = true;
+    }
+
     @Override
     public int operationID() {
         return operationIndex;
@@ -0,0 +1,38 @@
+package codechicken.lib.render;
+
+/**
+ * Destination for vertices emitted by {@link CCRenderState}. Mirrors the stateful Tessellator api: normal, colour and
+ * brightness apply to all following vertices until changed.
+ */
+public interface IVertexSink {
+
+    public void startDrawing(int mode);
+
+    public void setNormal(float x, float y, float z);
+
+    /**
+     * @param colour RGBA packed colour
+     */
+    public void setColour(int colour);
+
+    public void setBrightness(int brightness);
+
+    public void addVertex(double x, double y, double z, double u, double v);
+
+    public void draw();
+
+    /**
+     * Adds count vertices from data, starting at vertex index start. Each vertex is stored as interleaved x, y, z, u, v
+     * floats, followed by nx, ny, nz when the data has normals.
+     *
+     * @param hasNormals  True if data contains normals
+     * @param emitNormals True to call setNormal for each vertex
+     */
+    public default void addVertices(float[] data, int start, int count, boolean hasNormals, boolean emitNormals) {
+        int stride = hasNormals ? 8 : 5;
+        for (int i = start * stride, end = (start + count) * stride; i < end; i += stride) {
+            if (emitNormals) setNormal(data[i + 5], data[i + 6], data[i + 7]);
+            addVertex(data[i], data[i + 1], data[i + 2], data[i + 3], data[i + 4]);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package codechicken.lib.render;
+
+import codechicken.lib.vec.Matrix4;
+import codechicken.lib.vec.Transformation;
+import codechicken.lib.vec.TransformationList;
+import codechicken.lib.vec.Translation;
+import codechicken.lib.vec.VariableTransformation;
+import codechicken.lib.vec.Vector3;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+/**
+ * The per instance transformation used by {@link CCModel#renderInstances}. Transformations share a pipeline slot, so
+ * this applies the transformations from the op list, then the instance's transformation and translation, which are
+ * replaced between instances without rebuilding the pipeline. Being a VariableTransformation it is never folded into a
+ * compiled matrix by the pipeline.
+ */
+class InstanceTransformation extends VariableTransformation {
+
+    final Transformation base;
+    Transformation transform;
+    final Translation translation = new Translation(new Vector3());
+
+    /**
+     * @param base The transformation applied to every instance, or null
+     */
+    InstanceTransformation(Transformation base) {
+        super(null);
+        this.base = base;
+    }
+
+    void set(Transformation transform, double x, double y, double z) {
+        this.transform = transform;
+        translation.vec.set(x, y, z);
+    }
+
+    @Override
+    public void apply(Vector3 vec) {
+        if (base != null) base.apply(vec);
+        if (transform != null) transform.apply(vec);
+        translation.apply(vec);
+    }
+
+    @Override
+    public void applyN(Vector3 normal) {
+        if (base != null) base.applyN(normal);
+        if (transform != null) transform.applyN(normal);
+    }
+
+    @Override
+    public void apply(VertexBatch batch, boolean normals) {
+        if (base != null) base.apply(batch, normals);
+        if (transform != null) transform.apply(batch, normals);
+        translation.apply(batch, normals);
+    }
+
+    @Override
+    public void apply(Matrix4 mat) {
+        translation.apply(mat);
+        if (transform != null) transform.apply(mat);
+        if (base != null) base.apply(mat);
+    }
+
+    @Override
+    @SideOnly(Side.CLIENT)
+    public void glApply() {
+        translation.glApply();
+        if (transform != null) transform.glApply();
+        if (base != null) base.glApply();
+    }
+
+    /**
+     * @return The inverse of the current instance
+     */
+    @Override
+    public Transformation inverse() {
+        TransformationList inv = new TransformationList(translation.inverse());
+        if (transform != null) inv.with(transform.inverse());
+        if (base != null) inv.with(base.inverse());
+        return inv;
+    }
+}
@@ -0,0 +1,139 @@
+package codechicken.lib.render;
+
+import java.util.ArrayList;
+
+import codechicken.lib.vec.Cuboid6;
+import codechicken.lib.vec.Vector3;
+
+/**
+ * Simplified levels of detail of a CCModel for rendering at a distance. Level 0 is the model itself. Quad models are
+ * first merged with {@link CCModel#optimise()} on a copy, then each further level is reduced to ratio times the
+ * triangles of the previous by quadric edge collapse. UV seams, hard normal edges and open borders are kept intact.
+ * Every level keeps the vertex mode of the model, quad levels simplified past merging hold each triangle as a
+ * degenerate quad. Generation stops early once a level can't be reduced further.
+ * <p>
+ * Levels are selected by projected size, the radius of the model's bounding sphere over its distance from the viewer,
+ * so that each level covers a quarter of the screen area of the one before at the default ratio.
+ *
+ * <pre>
+ * ModelLOD.get(model).select(x, y, z).render(state, new Translation(x, y, z));
+ * </pre>
+ * <p>
+ * The default levels are stored on the model, see {@link CCModel#getLOD()}.
+ */
+public class ModelLOD {
+
+    public static final int DEFAULT_LEVELS = 4;
+    public static final double DEFAULT_RATIO = 0.25;
+
+    /**
+     * Level 0 is the full model
+     */
+    public final CCModel[] levels;
+    /**
+     * The number of triangles in each level
+     */
+    public final int[] triangles;
+    public final double ratio;
+    public final Vector3 center;
+    public final double radius;
+    /**
+     * The projected size below which level 1 is used
+     */
+    public double detailSize = 0.05;
+
+    public ModelLOD(CCModel model) {
+        this(model, DEFAULT_LEVELS, DEFAULT_RATIO);
+    }
+
+    /**
+     * @param maxLevels The number of levels including the full model
+     * @param ratio     The fraction of triangles each level keeps from the one before
+     */
+    public ModelLOD(CCModel model, int maxLevels, double ratio) {
+        if (ratio <= 0 || ratio >= 1) throw new IllegalArgumentException("LOD ratio must be between 0 and 1: " + ratio);
+
+        this.ratio = ratio;
+        if (model.verts.length > 0) {
+            Cuboid6 bounds = model.bounds();
+            center = bounds.center();
+            radius = bounds.max.copy().subtract(bounds.min).mag() / 2;
+        } else {
+            center = new Vector3();
+            radius = 0;
+        }
+
+        ArrayList<CCModel> levels = new ArrayList<CCModel>();
+        ArrayList<Integer> triangles = new ArrayList<Integer>();
+        int count = ModelSimplifier.triangleCount(model);
+        levels.add(model);
+        triangles.add(count);
+
+        CCModel source = model;
+        if (model.vp == 4) {
+            source = model.copy();
+            source.optimise();
+        }
+        int sourceCount = ModelSimplifier.triangleCount(source);
+
+        double target = count;
+        while (levels.size() < maxLevels) {
+            target *= ratio;
+            CCModel level = sourceCount <= target ? source : ModelSimplifier.simplify(source, (int) Math.ceil(target));
+            int levelCount = ModelSimplifier.triangleCount(level);
+            if (levelCount >= triangles.get(triangles.size() - 1)) break;
+
+            levels.add(level);
+            triangles.add(levelCount);
+        }
+
+        this.levels = levels.toArray(new CCModel[0]);
+        this.triangles = new int[triangles.size()];
+        for (int i = 0; i < this.triangles.length; i++) this.triangles[i] = triangles.get(i);
+    }
+
+    /**
+     * @return The levels of model generated with the defaults, see {@link CCModel#getLOD()}
+     */
+    public static ModelLOD get(CCModel model) {
+        return model.getLOD();
+    }
+
+    /**
+     * Drops the cached levels of model, call after moving its vertices
+     */
+    public static void invalidate(CCModel model) {
+        model.clearLOD();
+    }
+
+    /**
+     * @param projectedSize The bounding radius over the distance from the viewer
+     */
+    public int selectLevel(double projectedSize) {
+        if (projectedSize >= detailSize) return 0;
+
+        // screen area scales with the square of projected size
+        double area = projectedSize * projectedSize / (detailSize * detailSize);
+        int level = 1 + (int) (Math.log(area) / Math.log(ratio));
+        return Math.min(Math.max(level, 1), levels.length - 1);
+    }
+
+    public CCModel select(double projectedSize) {
+        return levels[selectLevel(projectedSize)];
+    }
+
+    /**
+     * @param distance The distance from the viewer to the model's center
+     */
+    public CCModel selectForDistance(double distance) {
+        return select(distance <= 0 ? Double.POSITIVE_INFINITY : radius / distance);
+    }
+
+    /**
+     * @param x The position of the model's origin relative to the viewer, as passed to a renderer
+     */
+    public CCModel select(double x, double y, double z) {
+        double dx = x + center.x, dy = y + center.y, dz = z + center.z;
+        return selectForDistance(Math.sqrt(dx * dx + dy * dy + dz * dz));
+    }
+}
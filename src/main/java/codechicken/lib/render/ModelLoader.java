@@ -0,0 +1,197 @@
+package codechicken.lib.render;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.minecraft.util.ResourceLocation;
+
+import codechicken.lib.vec.Transformation;
+
+/**
+ * Loads batches of model resources on a bounded fork join pool. Each request is parsed and built independently and obj
+ * groups are built in parallel once a file's vertex tables are read. Every result depends only on its own request, so
+ * results are the same as loading sequentially regardless of scheduling.
+ *
+ * <pre>
+ * ModelLoader.Batch batch = ModelLoader.instance().batch();
+ * Future&lt;Map&lt;String, CCModel&gt;&gt; models = batch.obj(new ResourceLocation("mod", "models/thing.obj"));
+ * Future&lt;RasterisedModel&gt; qb = batch.qb(new ResourceLocation("mod", "models/other.qb"), QBImporter.SCALEMC);
+ * batch.await();
+ * </pre>
+ *
+ * The shared instance uses {@code -Dccl.modelLoaderThreads} threads, by default one less than the processor count.
+ */
+public class ModelLoader {
+
+    public static final int DEFAULT_PARALLELISM = Math.max(
+            1,
+            Integer.getInteger("ccl.modelLoaderThreads", Runtime.getRuntime().availableProcessors() - 1));
+
+    private static ModelLoader instance;
+
+    public static synchronized ModelLoader instance() {
+        if (instance == null) instance = new ModelLoader(DEFAULT_PARALLELISM);
+        return instance;
+    }
+
+    private final ForkJoinPool pool;
+
+    public ModelLoader(int parallelism) {
+        final ClassLoader classLoader = ModelLoader.class.getClassLoader();
+        pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("CCL Model Loader " + thread.getPoolIndex());
+            thread.setDaemon(true);
+            // resource packs and mod classes are found through the launch class loader
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }, null, false);
+    }
+
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Stops accepting work. Requests already submitted still complete
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * A pending model load, with its load time once complete
+     */
+    public static class Request<T> implements Future<T> {
+
+        public final String name;
+        private final ForkJoinTask<T> task;
+        private volatile long nanos = -1;
+
+        private Request(String name, final Callable<T> callable) {
+            this.name = name;
+            task = ForkJoinTask.adapt(() -> {
+                long start = System.nanoTime();
+                try {
+                    return callable.call();
+                } finally {
+                    nanos = System.nanoTime() - start;
+                }
+            });
+        }
+
+        /**
+         * @return The time spent loading, or -1 if not finished
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Waits for the result, rethrowing failures unchecked
+         */
+        public T join() {
+            return task.join();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return task.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return task.get(timeout, unit);
+        }
+
+        @Override
+        public String toString() {
+            return name + (nanos < 0 ? " (loading)" : " (" + nanos / 1000000 + "ms)");
+        }
+    }
+
+    /**
+     * A set of requests that can be waited on together. Not thread safe, submit from one thread.
+     */
+    public class Batch {
+
+        private final List<Request<?>> requests = new ArrayList<Request<?>>();
+
+        public <T> Request<T> submit(String name, Callable<T> callable) {
+            Request<T> request = new Request<T>(name, callable);
+            requests.add(request);
+            pool.execute(request.task);
+            return request;
+        }
+
+        /**
+         * Loads an obj resource as triangles, like {@link CCModel#parseObjModels(ResourceLocation)}
+         */
+        public Request<Map<String, CCModel>> obj(ResourceLocation res) {
+            return obj(res, 4, null);
+        }
+
+        /**
+         * Loads an obj resource, see {@link CCModel#parseObjModels(ResourceLocation, int, Transformation)}
+         */
+        public Request<Map<String, CCModel>> obj(final ResourceLocation res, final int vertexMode,
+                final Transformation coordSystem) {
+            return submit(res.toString(), () -> ObjModelCache.parseObjModels(res, vertexMode, coordSystem, true));
+        }
+
+        /**
+         * Loads a qubicle resource and rasterises it with flags from {@link QBImporter}
+         */
+        public Request<QBImporter.RasterisedModel> qb(final ResourceLocation res, final int flags) {
+            return submit(res.toString(), () -> QBImporter.loadQB(res).toRasterisedModel(flags));
+        }
+
+        /**
+         * @return The requests submitted so far, in submission order
+         */
+        public List<Request<?>> requests() {
+            return Collections.unmodifiableList(requests);
+        }
+
+        /**
+         * Waits for every request to finish. If any failed, the first failure in submission order is thrown once all
+         * have finished.
+         */
+        public void await() {
+            RuntimeException failure = null;
+            for (Request<?> request : requests) {
+                try {
+                    request.join();
+                } catch (RuntimeException e) {
+                    if (failure == null) failure = new RuntimeException("failed to load model: " + request.name, e);
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+}
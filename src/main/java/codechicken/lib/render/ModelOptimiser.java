@@ -0,0 +1,278 @@
+package codechicken.lib.render;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import codechicken.lib.vec.Vector3;
+
+/**
+ * Implementation of {@link CCModel#optimise()}.
+ * <p>
+ * Quads that are axis aligned rectangles are grouped by plane, facing, vertex order and texture index, then greedily
+ * merged with neighbours sharing a full edge, alternating between the two in plane axes until nothing changes. Two
+ * quads merge only when every attribute is uniform over both and equal between them, and the UVs continue linearly
+ * across the shared edge, so the merged quad renders the same texels.
+ */
+class ModelOptimiser {
+
+    private static final double UV_EPSILON = 1E-9;
+    private static final double AREA_EPSILON = 1E-20;
+
+    /**
+     * An axis aligned rectangle of quads. Corners are indexed by ia * 2 + ib for the low or high edge on each in plane
+     * axis
+     */
+    private static class Rect {
+
+        int quad; // the first source quad, where attributes are copied from
+        final int pattern; // the corner of each vertex, 2 bits per vertex
+        final Vertex5[] corners = new Vertex5[4];
+        final double[] min = new double[2];
+        final double[] max = new double[2];
+        boolean removed;
+
+        Rect(int quad, int pattern) {
+            this.quad = quad;
+            this.pattern = pattern;
+        }
+    }
+
+    private final CCModel model;
+    private final ArrayList<Object> attributes;
+
+    private ModelOptimiser(CCModel model) {
+        this.model = model;
+        attributes = new ArrayList<Object>();
+        for (Object array : model.attributes) if (array != null) attributes.add(array);
+    }
+
+    static int optimise(CCModel model) {
+        return new ModelOptimiser(model).optimise();
+    }
+
+    private int optimise() {
+        int vp = model.vp;
+        int faces = model.verts.length / vp;
+        boolean[] keep = new boolean[faces];
+        boolean[] merging = new boolean[faces];
+        Rect[] rects = new Rect[faces];
+        Map<List<Object>, List<Rect>> planes = new HashMap<List<Object>, List<Rect>>();
+
+        for (int f = 0; f < faces; f++) {
+            if (isDegenerate(f * vp)) continue;
+
+            keep[f] = true;
+            if (vp != 4) continue;
+
+            int axis = planeAxis(f * 4);
+            Rect rect = axis < 0 || !isUniform(f * 4) ? null : toRect(f, axis);
+            if (rect == null) continue;
+
+            merging[f] = true;
+            List<Object> key = Arrays.<Object>asList(
+                    axis,
+                    coord(model.verts[f * 4].vec, axis),
+                    rect.pattern,
+                    model.verts[f * 4].uv.tex);
+            planes.computeIfAbsent(key, k -> new ArrayList<Rect>()).add(rect);
+        }
+
+        for (List<Rect> plane : planes.values()) {
+            boolean changed = true;
+            while (changed) {
+                changed = mergeRuns(plane, 0);
+                changed |= mergeRuns(plane, 1);
+            }
+            // a merged rect is emitted in place of its first source quad, the other sources are dropped
+            for (Rect rect : plane) rects[rect.quad] = rect;
+        }
+
+        int count = 0;
+        for (int f = 0; f < faces; f++) {
+            if (!keep[f]) continue;
+            if (merging[f] && rects[f] == null) keep[f] = false;
+            else count++;
+        }
+
+        int removed = model.verts.length - count * vp;
+        if (removed == 0) return 0;
+
+        CCModel out = CCModel.newModel(model.vertexMode, count * vp);
+        int i = 0;
+        for (int f = 0; f < faces; f++) {
+            if (!keep[f]) continue;
+
+            Rect rect = rects[f];
+            CCModel.copy(model, f * vp, out, i, vp);
+            if (rect != null) for (int k = 0; k < 4; k++) {
+                Vertex5 corner = rect.corners[rect.pattern >> k * 2 & 3];
+                out.verts[i + k].vec.set(corner.vec);
+                out.verts[i + k].uv.set(corner.uv);
+            }
+            i += vp;
+        }
+
+        model.verts = out.verts;
+        model.attributes = out.attributes;
+        model.floatVerts = null;
+        return removed;
+    }
+
+    private boolean isDegenerate(int i) {
+        Vector3 a = model.verts[i].vec;
+        Vector3 b = model.verts[i + 1].vec;
+        Vector3 c = model.verts[i + 2].vec;
+        // twice the area of a triangle is the length of the cross product of two edges, and of a planar quad the
+        // length of the cross product of its diagonals
+        Vector3 d = model.vp == 4 ? model.verts[i + 3].vec : b;
+        Vector3 e = model.vp == 4 ? b : a;
+        double x1 = c.x - a.x, y1 = c.y - a.y, z1 = c.z - a.z;
+        double x2 = d.x - e.x, y2 = d.y - e.y, z2 = d.z - e.z;
+        double cx = y1 * z2 - z1 * y2;
+        double cy = z1 * x2 - x1 * z2;
+        double cz = x1 * y2 - y1 * x2;
+        return cx * cx + cy * cy + cz * cz <= AREA_EPSILON;
+    }
+
+    private static double coord(Vector3 vec, int axis) {
+        return axis == 0 ? vec.x : axis == 1 ? vec.y : vec.z;
+    }
+
+    /**
+     * @return The axis every vertex of quad i shares a coordinate on, or -1
+     */
+    private int planeAxis(int i) {
+        Vertex5[] verts = model.verts;
+        for (int axis = 0; axis < 3; axis++) {
+            double d = coord(verts[i].vec, axis);
+            if (coord(verts[i + 1].vec, axis) == d && coord(verts[i + 2].vec, axis) == d
+                    && coord(verts[i + 3].vec, axis) == d)
+                return axis;
+        }
+        return -1;
+    }
+
+    /**
+     * @return A rect if the quad's vertices are the four corners of an axis aligned rectangle
+     */
+    private Rect toRect(int f, int axis) {
+        Vertex5[] verts = model.verts;
+        int a = (axis + 1) % 3, b = (axis + 2) % 3;
+        double a0 = Double.NaN, a1 = Double.NaN, b0 = Double.NaN, b1 = Double.NaN;
+        for (int k = 0; k < 4; k++) {
+            double va = coord(verts[f * 4 + k].vec, a), vb = coord(verts[f * 4 + k].vec, b);
+            if (k == 0 || va == a0) a0 = va;
+            else if (Double.isNaN(a1) || va == a1) a1 = va;
+            else return null;
+            if (k == 0 || vb == b0) b0 = vb;
+            else if (Double.isNaN(b1) || vb == b1) b1 = vb;
+            else return null;
+        }
+        if (Double.isNaN(a1) || Double.isNaN(b1)) return null;
+
+        int pattern = 0, seen = 0;
+        Vertex5[] corners = new Vertex5[4];
+        for (int k = 0; k < 4; k++) {
+            Vertex5 vert = verts[f * 4 + k];
+            int corner = (coord(vert.vec, a) == Math.max(a0, a1) ? 2 : 0)
+                    | (coord(vert.vec, b) == Math.max(b0, b1) ? 1 : 0);
+            if ((seen & 1 << corner) != 0) return null;
+            seen |= 1 << corner;
+            pattern |= corner << k * 2;
+            corners[corner] = vert;
+        }
+
+        Rect rect = new Rect(f, pattern);
+        System.arraycopy(corners, 0, rect.corners, 0, 4);
+        rect.min[0] = Math.min(a0, a1);
+        rect.max[0] = Math.max(a0, a1);
+        rect.min[1] = Math.min(b0, b1);
+        rect.max[1] = Math.max(b0, b1);
+        return rect;
+    }
+
+    /**
+     * @return True if every attribute has the same value on all four vertices of quad i
+     */
+    private boolean isUniform(int i) {
+        for (Object array : attributes)
+            for (int k = 1; k < 4; k++) if (!attributeEquals(array, i, i + k)) return false;
+        return true;
+    }
+
+    private static boolean attributeEquals(Object array, int i, int j) {
+        Object a = Array.get(array, i), b = Array.get(array, j);
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Merges rects that share a full edge perpendicular to axis
+     *
+     * @return True if any rects were merged
+     */
+    private boolean mergeRuns(List<Rect> plane, final int axis) {
+        final int other = 1 - axis;
+        plane.sort(
+                Comparator.<Rect>comparingDouble(r -> r.min[other]).thenComparingDouble(r -> r.max[other])
+                        .thenComparingDouble(r -> r.min[axis]));
+
+        boolean changed = false;
+        for (int i = 0; i < plane.size(); i++) {
+            Rect r = plane.get(i);
+            if (r.removed) continue;
+
+            for (int j = i + 1; j < plane.size(); j++) {
+                Rect s = plane.get(j);
+                if (s.min[other] != r.min[other] || s.max[other] != r.max[other] || s.min[axis] > r.max[axis]) break;
+                if (s.removed || s.min[axis] != r.max[axis] || !canMerge(r, s, axis)) continue;
+
+                merge(r, s, axis);
+                changed = true;
+            }
+        }
+
+        if (changed) plane.removeIf(r -> r.removed);
+        return changed;
+    }
+
+    private static int corner(int axis, int high, int otherHigh) {
+        return axis == 0 ? high << 1 | otherHigh : otherHigh << 1 | high;
+    }
+
+    /**
+     * s lies directly above r along axis
+     */
+    private boolean canMerge(Rect r, Rect s, int axis) {
+        for (int k = 0; k < attributes.size(); k++)
+            if (!attributeEquals(attributes.get(k), r.quad * 4, s.quad * 4)) return false;
+
+        double t = (r.max[axis] - r.min[axis]) / (s.max[axis] - r.min[axis]);
+        for (int o = 0; o < 2; o++) {
+            Vertex5 low = r.corners[corner(axis, 0, o)];
+            Vertex5 edge = r.corners[corner(axis, 1, o)];
+            Vertex5 sEdge = s.corners[corner(axis, 0, o)];
+            Vertex5 high = s.corners[corner(axis, 1, o)];
+            if (!uvEquals(edge.uv.u, sEdge.uv.u) || !uvEquals(edge.uv.v, sEdge.uv.v)) return false;
+            if (!uvEquals(edge.uv.u, low.uv.u + (high.uv.u - low.uv.u) * t)
+                    || !uvEquals(edge.uv.v, low.uv.v + (high.uv.v - low.uv.v) * t))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean uvEquals(double a, double b) {
+        return Math.abs(a - b) <= UV_EPSILON;
+    }
+
+    private static void merge(Rect r, Rect s, int axis) {
+        r.max[axis] = s.max[axis];
+        for (int o = 0; o < 2; o++) r.corners[corner(axis, 1, o)] = s.corners[corner(axis, 1, o)];
+        r.quad = Math.min(r.quad, s.quad);
+        s.removed = true;
+    }
+}
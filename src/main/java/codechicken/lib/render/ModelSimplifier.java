@@ -0,0 +1,453 @@
+package codechicken.lib.render;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+import codechicken.lib.vec.Vector3;
+
+/**
+ * Quadric error edge collapse simplification for {@link ModelLOD}. Faces are split into triangles and corners are
+ * welded where position, UV and every attribute match. A welded vertex is locked when another welded vertex shares its
+ * position, which happens along UV seams and hard normal edges, or when it lies on an open border. Locked vertices are
+ * never moved, so seams and silhouettes stay closed.
+ * <p>
+ * Collapses move one vertex onto a neighbour rather than to an optimal position, so every remaining vertex keeps its
+ * original UV and attributes.
+ */
+class ModelSimplifier {
+
+    private static final double MIN_NORMAL_DOT = 0.2;
+
+    private static class Collapse implements Comparable<Collapse> {
+
+        final double cost;
+        final int from, to;
+        final int fromVersion, toVersion;
+
+        Collapse(double cost, int from, int to, int fromVersion, int toVersion) {
+            this.cost = cost;
+            this.from = from;
+            this.to = to;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        @Override
+        public int compareTo(Collapse o) {
+            return Double.compare(cost, o.cost);
+        }
+    }
+
+    /**
+     * A source vertex compared by position, UV and attributes
+     */
+    private class WeldKey {
+
+        final int index;
+        final int hash;
+
+        WeldKey(int index) {
+            this.index = index;
+            Vertex5 vert = model.verts[index];
+            // + 0.0 maps -0.0 to 0.0 as they compare equal
+            int h = Objects.hash(
+                    vert.vec.x + 0.0,
+                    vert.vec.y + 0.0,
+                    vert.vec.z + 0.0,
+                    vert.uv.u + 0.0,
+                    vert.uv.v + 0.0,
+                    vert.uv.tex);
+            for (Object array : attributes) h = h * 31 + hashValue(Array.get(array, index));
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WeldKey)) return false;
+            int j = ((WeldKey) o).index;
+            Vertex5 a = model.verts[index], b = model.verts[j];
+            if (!a.vec.equals(b.vec) || a.uv.u != b.uv.u || a.uv.v != b.uv.v || a.uv.tex != b.uv.tex) return false;
+            for (Object array : attributes) if (!Objects.equals(Array.get(array, index), Array.get(array, j)))
+                return false;
+            return true;
+        }
+    }
+
+    private static int hashValue(Object o) {
+        if (!(o instanceof Vector3)) return Objects.hashCode(o);
+        Vector3 v = (Vector3) o;
+        return Objects.hash(v.x + 0.0, v.y + 0.0, v.z + 0.0);
+    }
+
+    private final CCModel model;
+    private final Object[] attributes;
+
+    private int vertCount;
+    private int[] source; // the source vertex of each welded vertex
+    private double[] pos;
+    private double[] quadrics; // 10 per vertex, the upper triangle of the symmetric 4x4 matrix
+    private double[] triNormals; // the unit normal of each triangle before simplification
+    private boolean[] locked;
+    private boolean[] removed;
+    private int[] versions;
+    private int[][] vertTris; // triangles using each vertex, may hold dead triangles
+    private int[] vertTriCount;
+
+    private int triCount;
+    private int[] tris;
+    private boolean[] dead;
+
+    private ModelSimplifier(CCModel model) {
+        this.model = model;
+        int n = 0;
+        Object[] attributes = new Object[model.attributes.size()];
+        for (Object array : model.attributes) if (array != null) attributes[n++] = array;
+        this.attributes = Arrays.copyOf(attributes, n);
+    }
+
+    /**
+     * @param target The number of triangles to reduce to
+     * @return A model with the vertex mode of model reduced towards target triangles, with more if no further collapse
+     *         is allowed. Quad models hold each triangle as a degenerate quad, as {@link CCModel#quadulate} does
+     */
+    static CCModel simplify(CCModel model, int target) {
+        ModelSimplifier s = new ModelSimplifier(model);
+        s.weld();
+        s.computeQuadrics();
+        s.collapse(target);
+        return s.build();
+    }
+
+    /**
+     * @return The number of triangles model renders as, excluding degenerate triangles of quads
+     */
+    static int triangleCount(CCModel model) {
+        if (model.vp == 3) return model.verts.length / 3;
+
+        int n = 0;
+        for (int i = 0; i < model.verts.length; i += 4) {
+            if (!isDegenerate(model.verts, i, i + 1, i + 2)) n++;
+            if (!isDegenerate(model.verts, i, i + 2, i + 3)) n++;
+        }
+        return n;
+    }
+
+    private static boolean isDegenerate(Vertex5[] verts, int a, int b, int c) {
+        Vector3 va = verts[a].vec, vb = verts[b].vec, vc = verts[c].vec;
+        return va.equals(vb) || vb.equals(vc) || vc.equals(va);
+    }
+
+    private void weld() {
+        Vertex5[] verts = model.verts;
+        int vp = model.vp;
+        Map<WeldKey, Integer> welded = new HashMap<WeldKey, Integer>();
+        int[] weldIndex = new int[verts.length];
+        source = new int[verts.length];
+        for (int i = 0; i < verts.length; i++) {
+            WeldKey key = new WeldKey(i);
+            Integer w = welded.get(key);
+            if (w == null) {
+                welded.put(key, w = vertCount);
+                source[vertCount++] = i;
+            }
+            weldIndex[i] = w;
+        }
+
+        tris = new int[verts.length / vp * (vp - 2) * 3];
+        for (int f = 0; f < verts.length; f += vp) for (int k = 2; k < vp; k++) {
+            if (isDegenerate(verts, f, f + k - 1, f + k)) continue;
+
+            tris[triCount * 3] = weldIndex[f];
+            tris[triCount * 3 + 1] = weldIndex[f + k - 1];
+            tris[triCount * 3 + 2] = weldIndex[f + k];
+            triCount++;
+        }
+        dead = new boolean[triCount];
+
+        pos = new double[vertCount * 3];
+        for (int v = 0; v < vertCount; v++) {
+            Vector3 vec = verts[source[v]].vec;
+            pos[v * 3] = vec.x;
+            pos[v * 3 + 1] = vec.y;
+            pos[v * 3 + 2] = vec.z;
+        }
+
+        vertTris = new int[vertCount][];
+        vertTriCount = new int[vertCount];
+        for (int t = 0; t < triCount * 3; t++) addTri(tris[t], t / 3);
+
+        // seams, corners of hard edges and borders are locked
+        locked = new boolean[vertCount];
+        Map<Long, Integer> edges = new HashMap<Long, Integer>();
+        Map<PositionKey, Integer> firstAt = new HashMap<PositionKey, Integer>();
+        for (int v = 0; v < vertCount; v++) {
+            Integer other = firstAt.putIfAbsent(new PositionKey(v), v);
+            if (other != null) locked[v] = locked[other] = true;
+        }
+        for (int t = 0; t < triCount; t++) for (int k = 0; k < 3; k++) {
+            int a = tris[t * 3 + k], b = tris[t * 3 + (k + 1) % 3];
+            edges.merge(edgeKey(a, b), 1, Integer::sum);
+        }
+        for (Map.Entry<Long, Integer> e : edges.entrySet()) if (e.getValue() != 2) {
+            locked[(int) (e.getKey() / vertCount)] = true;
+            locked[(int) (e.getKey() % vertCount)] = true;
+        }
+
+        removed = new boolean[vertCount];
+        versions = new int[vertCount];
+    }
+
+    /**
+     * A welded vertex compared by position
+     */
+    private class PositionKey {
+
+        final int v;
+
+        PositionKey(int v) {
+            this.v = v;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pos[v * 3] + 0.0, pos[v * 3 + 1] + 0.0, pos[v * 3 + 2] + 0.0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PositionKey)) return false;
+            int w = ((PositionKey) o).v;
+            return pos[v * 3] == pos[w * 3] && pos[v * 3 + 1] == pos[w * 3 + 1] && pos[v * 3 + 2] == pos[w * 3 + 2];
+        }
+    }
+
+    /**
+     * Packed as min * vertCount + max rather than in the high and low words, which Long.hashCode would xor together
+     */
+    private long edgeKey(int a, int b) {
+        return (long) Math.min(a, b) * vertCount + Math.max(a, b);
+    }
+
+    private void addTri(int v, int t) {
+        int[] list = vertTris[v];
+        if (list == null) list = vertTris[v] = new int[6];
+        else if (vertTriCount[v] == list.length) list = vertTris[v] = Arrays.copyOf(list, list.length * 2);
+        list[vertTriCount[v]++] = t;
+    }
+
+    private void computeQuadrics() {
+        quadrics = new double[vertCount * 10];
+        triNormals = new double[triCount * 3];
+        for (int t = 0; t < triCount; t++) {
+            int a = tris[t * 3] * 3, b = tris[t * 3 + 1] * 3, c = tris[t * 3 + 2] * 3;
+            double e1x = pos[b] - pos[a], e1y = pos[b + 1] - pos[a + 1], e1z = pos[b + 2] - pos[a + 2];
+            double e2x = pos[c] - pos[a], e2y = pos[c + 1] - pos[a + 1], e2z = pos[c + 2] - pos[a + 2];
+            double nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+            double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (len == 0) continue;
+
+            // plane quadric weighted by area, len is twice the area
+            double area = len / 2;
+            nx /= len;
+            ny /= len;
+            nz /= len;
+            triNormals[t * 3] = nx;
+            triNormals[t * 3 + 1] = ny;
+            triNormals[t * 3 + 2] = nz;
+            double d = -(nx * pos[a] + ny * pos[a + 1] + nz * pos[a + 2]);
+            for (int k = 0; k < 3; k++) {
+                int q = tris[t * 3 + k] * 10;
+                quadrics[q] += area * nx * nx;
+                quadrics[q + 1] += area * nx * ny;
+                quadrics[q + 2] += area * nx * nz;
+                quadrics[q + 3] += area * nx * d;
+                quadrics[q + 4] += area * ny * ny;
+                quadrics[q + 5] += area * ny * nz;
+                quadrics[q + 6] += area * ny * d;
+                quadrics[q + 7] += area * nz * nz;
+                quadrics[q + 8] += area * nz * d;
+                quadrics[q + 9] += area * d * d;
+            }
+        }
+    }
+
+    /**
+     * @return The error of moving from onto to
+     */
+    private double cost(int from, int to) {
+        int a = from * 10, b = to * 10;
+        double x = pos[to * 3], y = pos[to * 3 + 1], z = pos[to * 3 + 2];
+        double[] q = quadrics;
+        return (q[a] + q[b]) * x * x + 2 * (q[a + 1] + q[b + 1]) * x * y + 2 * (q[a + 2] + q[b + 2]) * x * z
+                + 2 * (q[a + 3] + q[b + 3]) * x
+                + (q[a + 4] + q[b + 4]) * y * y
+                + 2 * (q[a + 5] + q[b + 5]) * y * z
+                + 2 * (q[a + 6] + q[b + 6]) * y
+                + (q[a + 7] + q[b + 7]) * z * z
+                + 2 * (q[a + 8] + q[b + 8]) * z
+                + q[a + 9]
+                + q[b + 9];
+    }
+
+    private void push(PriorityQueue<Collapse> queue, int from, int to) {
+        if (locked[from]) return;
+        queue.add(new Collapse(cost(from, to), from, to, versions[from], versions[to]));
+    }
+
+    private void collapse(int target) {
+        PriorityQueue<Collapse> queue = new PriorityQueue<Collapse>();
+        // an edge shared by two triangles appears once in each direction
+        for (int t = 0; t < triCount; t++)
+            for (int k = 0; k < 3; k++) push(queue, tris[t * 3 + k], tris[t * 3 + (k + 1) % 3]);
+
+        int[] marks = new int[vertCount];
+        int mark = 0;
+
+        int alive = triCount;
+        while (alive > target && !queue.isEmpty()) {
+            Collapse c = queue.poll();
+            if (removed[c.from] || removed[c.to] || versions[c.from] != c.fromVersion
+                    || versions[c.to] != c.toVersion)
+                continue;
+            if (!canCollapse(c.from, c.to)) continue;
+
+            alive -= apply(c.from, c.to);
+            versions[c.to]++;
+            marks[c.to] = ++mark;
+            int[] list = vertTris[c.to];
+            for (int i = 0; i < vertTriCount[c.to]; i++) {
+                int t = list[i];
+                if (dead[t]) continue;
+
+                for (int k = 0; k < 3; k++) {
+                    int v = tris[t * 3 + k];
+                    if (marks[v] == mark) continue;
+
+                    marks[v] = mark;
+                    push(queue, v, c.to);
+                    push(queue, c.to, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rejects collapses that would flip or degenerate a triangle, or make the mesh non manifold
+     */
+    private boolean canCollapse(int from, int to) {
+        int shared = 0;
+        int[] list = vertTris[from];
+        for (int i = 0; i < vertTriCount[from]; i++) {
+            int t = list[i];
+            if (dead[t]) continue;
+            if (hasVertex(t, to)) {
+                shared++;
+                continue;
+            }
+
+            // compared to the triangle's original facing, so repeated small turns can't fold it over
+            int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+            if (a == from) a = to;
+            if (b == from) b = to;
+            if (c == from) c = to;
+            a *= 3;
+            b *= 3;
+            c *= 3;
+            double e1x = pos[b] - pos[a], e1y = pos[b + 1] - pos[a + 1], e1z = pos[b + 2] - pos[a + 2];
+            double e2x = pos[c] - pos[a], e2y = pos[c + 1] - pos[a + 1], e2z = pos[c + 2] - pos[a + 2];
+            double nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+            double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (len == 0 || nx * triNormals[t * 3] + ny * triNormals[t * 3 + 1] + nz * triNormals[t * 3 + 2]
+                    < MIN_NORMAL_DOT * len)
+                return false;
+        }
+        if (shared == 0) return false;
+
+        // link condition, the only vertices adjacent to both are the opposite corners of the shared triangles
+        int common = 0;
+        int[] toList = vertTris[to];
+        for (int i = 0; i < vertTriCount[from]; i++) {
+            int t = list[i];
+            if (dead[t]) continue;
+            for (int k = 0; k < 3; k++) {
+                int v = tris[t * 3 + k];
+                if (v == from || v == to || seenBefore(list, i, v)) continue;
+                for (int j = 0; j < vertTriCount[to]; j++) {
+                    if (!dead[toList[j]] && hasVertex(toList[j], v)) {
+                        common++;
+                        break;
+                    }
+                }
+            }
+        }
+        return common == shared;
+    }
+
+    /**
+     * @return True if v is a vertex of a live triangle in list before index i
+     */
+    private boolean seenBefore(int[] list, int i, int v) {
+        for (int j = 0; j < i; j++) if (!dead[list[j]] && hasVertex(list[j], v)) return true;
+        return false;
+    }
+
+    private boolean hasVertex(int t, int v) {
+        return tris[t * 3] == v || tris[t * 3 + 1] == v || tris[t * 3 + 2] == v;
+    }
+
+    /**
+     * Moves from onto to
+     *
+     * @return The number of triangles removed
+     */
+    private int apply(int from, int to) {
+        int killed = 0;
+        int[] list = vertTris[from];
+        for (int i = 0; i < vertTriCount[from]; i++) {
+            int t = list[i];
+            if (dead[t]) continue;
+            if (hasVertex(t, to)) {
+                dead[t] = true;
+                killed++;
+                continue;
+            }
+
+            for (int k = 0; k < 3; k++) if (tris[t * 3 + k] == from) tris[t * 3 + k] = to;
+            addTri(to, t);
+        }
+
+        // drop dead triangles so lists of vertices that absorb many collapses stay short
+        int[] toList = vertTris[to];
+        int n = 0;
+        for (int i = 0; i < vertTriCount[to]; i++) if (!dead[toList[i]]) toList[n++] = toList[i];
+        vertTriCount[to] = n;
+
+        for (int k = 0; k < 10; k++) quadrics[to * 10 + k] += quadrics[from * 10 + k];
+        removed[from] = true;
+        return killed;
+    }
+
+    private CCModel build() {
+        int alive = 0;
+        for (int t = 0; t < triCount; t++) if (!dead[t]) alive++;
+
+        CCModel out = CCModel.newModel(model.vertexMode, alive * model.vp);
+        int i = 0;
+        for (int t = 0; t < triCount; t++) {
+            if (dead[t]) continue;
+            for (int k = 0; k < 3; k++) CCModel.copy(model, source[tris[t * 3 + k]], out, i++, 1);
+            // repeat the last corner to fill a quad
+            if (model.vp == 4) CCModel.copy(model, source[tris[t * 3 + 2]], out, i++, 1);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,131 @@
+package codechicken.lib.render;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.util.ResourceLocation;
+
+import org.apache.logging.log4j.LogManager;
+
+import codechicken.lib.vec.Transformation;
+
+/**
+ * On disk cache of parsed obj resources in {@link BinaryModel} form, keyed by a hash of the obj file contents and the
+ * vertex mode. Models are cached before the coordinate system is applied, so one entry serves every coordSystem.
+ * <p>
+ * Disabled by default, enable with {@code -Dccl.modelCache=true}. Entries are written to {@code ccl_cache/models} in
+ * the game directory and can be deleted at any time. The directory is kept under {@link #MAX_SIZE} by deleting the
+ * least recently used entries whenever a new one is written.
+ */
+public class ObjModelCache {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("ccl.modelCache"));
+    /**
+     * Maximum total size of the cache entries in bytes, set in megabytes with {@code -Dccl.modelCache.maxSizeMB}
+     */
+    public static final long MAX_SIZE = Math.max(Integer.getInteger("ccl.modelCache.maxSizeMB", 64), 0) * 1024L * 1024L;
+
+    private static File cacheDir;
+
+    public static File getCacheDir() {
+        if (cacheDir == null) cacheDir = new File(Minecraft.getMinecraft().mcDataDir, "ccl_cache/models");
+        return cacheDir;
+    }
+
+    /**
+     * Parses an obj resource, reading the compiled form from the cache when the resource is unchanged
+     */
+    public static Map<String, CCModel> parseObjModels(ResourceLocation res, int vertexMode, Transformation coordSystem)
+            throws IOException {
+        return parseObjModels(res, vertexMode, coordSystem, false);
+    }
+
+    static Map<String, CCModel> parseObjModels(ResourceLocation res, int vertexMode, Transformation coordSystem,
+            boolean parallelGroups) throws IOException {
+        InputStream in = Minecraft.getMinecraft().getResourceManager().getResource(res).getInputStream();
+        if (!ENABLED) return new ObjParser(in, vertexMode, coordSystem, parallelGroups).parse();
+
+        byte[] data;
+        try {
+            data = readFully(in);
+        } finally {
+            in.close();
+        }
+
+        File file = new File(getCacheDir(), hash(data) + "-" + vertexMode + ".ccm");
+        Map<String, CCModel> models = null;
+        if (file.exists()) {
+            try {
+                models = BinaryModel.read(file);
+                file.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                LogManager.getLogger("CodeChickenLib").warn("Ignoring unreadable model cache entry " + file, e);
+            }
+        }
+
+        if (models == null) {
+            models = new ObjParser(new ByteArrayInputStream(data), vertexMode, null, parallelGroups).parse();
+            try {
+                BinaryModel.write(models, file);
+            } catch (IOException e) {
+                LogManager.getLogger("CodeChickenLib").warn("Failed to write model cache entry " + file, e);
+            }
+            prune();
+        }
+
+        if (coordSystem != null) for (CCModel model : models.values()) model.apply(coordSystem);
+        return models;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in MAX_SIZE
+     */
+    private static synchronized void prune() {
+        File[] files = getCacheDir().listFiles((dir, name) -> name.endsWith(".ccm"));
+        if (files == null) return;
+
+        long size = 0;
+        Map<File, Long> lastUsed = new HashMap<>();
+        for (File file : files) {
+            size += file.length();
+            lastUsed.put(file, file.lastModified());
+        }
+        if (size <= MAX_SIZE) return;
+
+        Arrays.sort(files, Comparator.comparing(lastUsed::get));
+        for (int i = 0; i < files.length && size > MAX_SIZE; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) size -= length;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 8192));
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
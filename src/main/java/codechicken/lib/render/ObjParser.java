@@ -0,0 +1,440 @@
+package codechicken.lib.render;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+
+import codechicken.lib.vec.RedundantTransformation;
+import codechicken.lib.vec.Transformation;
+import codechicken.lib.vec.Vector3;
+
+/**
+ * Streaming WaveFront Obj parser behind {@link CCModel#parseObjModels(InputStream, int, Transformation)}. Lines are
+ * read into a reusable char buffer and tokenized in place, numbers are read straight from the buffer and all vertex
+ * data is kept in primitive arrays until the models are built.
+ * <p>
+ * All state belongs to the instance, so separate parsers can run on separate threads. A single parser is not thread
+ * safe and parses one stream.
+ */
+final class ObjParser {
+
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
+    private final Reader reader;
+    private final int vertexMode;
+    private final int vp;
+    private final Transformation coordSystem;
+
+    private final char[] buf = new char[8192];
+    private int bufPos;
+    private int bufLen;
+    private boolean skipLF;
+
+    private char[] line = new char[128];
+    private int lineLen;
+    private int pos;
+
+    private double[] verts = new double[3 * 256];
+    private int vertCount;
+    private double[] uvs = new double[2 * 256];
+    private int uvCount;
+    private double[] normals = new double[3 * 256];
+    private int normalCount;
+
+    // vertex, uv and normal index per polygon vertex, 1 based, 0 for none
+    private int[] polys = new int[3 * 256];
+    private int polyCount;
+    private int[] face = new int[3 * 8];
+
+    private final Vector3 vec = new Vector3();
+    private final double[] values = new double[3];
+
+    /**
+     * The polygons of a group and the size of each vertex table when the group ended
+     */
+    private static class Group {
+
+        final String name;
+        final int[] polys;
+        final int polyCount;
+        final int vertCount;
+        final int uvCount;
+        final int normalCount;
+
+        Group(String name, int[] polys, int polyCount, int vertCount, int uvCount, int normalCount) {
+            this.name = name;
+            this.polys = polys;
+            this.polyCount = polyCount;
+            this.vertCount = vertCount;
+            this.uvCount = uvCount;
+            this.normalCount = normalCount;
+        }
+    }
+
+    private final boolean parallelGroups;
+    private final ArrayList<Group> groups = new ArrayList<Group>();
+
+    ObjParser(InputStream input, int vertexMode, Transformation coordSystem) {
+        this(input, vertexMode, coordSystem, false);
+    }
+
+    /**
+     * @param parallelGroups Build the models for each group as separate fork join tasks once the whole file is read.
+     *                       Results are the same as a sequential parse.
+     */
+    ObjParser(InputStream input, int vertexMode, Transformation coordSystem, boolean parallelGroups) {
+        reader = new InputStreamReader(input);
+        this.vertexMode = vertexMode;
+        vp = vertexMode == 7 ? 4 : 3;
+        this.coordSystem = coordSystem == null ? new RedundantTransformation() : coordSystem;
+        this.parallelGroups = parallelGroups;
+    }
+
+    /**
+     * @return A map of group names to models
+     */
+    Map<String, CCModel> parse() throws IOException {
+        HashMap<String, CCModel> modelMap = new HashMap<String, CCModel>();
+        String modelName = "unnamed";
+
+        while (readLine()) {
+            skipSpace();
+            if (pos == lineLen || line[pos] == '#') continue;
+
+            int start = pos;
+            while (pos < lineLen && line[pos] > ' ') pos++;
+            int keyLen = pos - start;
+            skipSpace();
+            if (pos == lineLen) continue;
+
+            char c0 = line[start];
+            char c1 = keyLen > 1 ? line[start + 1] : 0;
+            if (c0 == 'v' && keyLen == 1) {
+                CCModel.illegalAssert(readValues() >= 3, "Vertices must have x, y and z components");
+                coordSystem.apply(vec.set(values[0], values[1], values[2]));
+                verts = ensure(verts, vertCount * 3 + 3);
+                verts[vertCount * 3] = vec.x;
+                verts[vertCount * 3 + 1] = vec.y;
+                verts[vertCount * 3 + 2] = vec.z;
+                vertCount++;
+            } else if (c0 == 'v' && c1 == 't' && keyLen == 2) {
+                CCModel.illegalAssert(readValues() >= 2, "Tex Coords must have u, and v components");
+                uvs = ensure(uvs, uvCount * 2 + 2);
+                uvs[uvCount * 2] = values[0];
+                uvs[uvCount * 2 + 1] = 1 - values[1];
+                uvCount++;
+            } else if (c0 == 'v' && c1 == 'n' && keyLen == 2) {
+                CCModel.illegalAssert(readValues() >= 3, "Normals must have x, y and z components");
+                coordSystem.applyN(vec.set(values[0], values[1], values[2]).normalize());
+                normals = ensure(normals, normalCount * 3 + 3);
+                normals[normalCount * 3] = vec.x;
+                normals[normalCount * 3 + 1] = vec.y;
+                normals[normalCount * 3 + 2] = vec.z;
+                normalCount++;
+            } else if (c0 == 'f' && keyLen == 1) {
+                int n = readFace();
+                CCModel.illegalAssert(n >= 3, "Polygons must have at least 3 vertices");
+                if (vp == 3) triangulate(n);
+                else quadulate(n);
+            } else if (c0 == 'g' && keyLen == 1) {
+                endGroup(modelName, modelMap);
+                modelName = readName();
+            }
+        }
+
+        endGroup(modelName, modelMap);
+        if (parallelGroups) buildGroups(modelMap);
+
+        return modelMap;
+    }
+
+    private void endGroup(String name, Map<String, CCModel> modelMap) {
+        if (polyCount == 0) return;
+
+        if (parallelGroups) {
+            int[] groupPolys = Arrays.copyOf(polys, polyCount * 3);
+            groups.add(new Group(name, groupPolys, polyCount, vertCount, uvCount, normalCount));
+        } else modelMap.put(name, createModel(polys, polyCount, vertCount, uvCount, normalCount));
+        polyCount = 0;
+    }
+
+    /**
+     * Groups only read the vertex tables, which are complete by now, so each model is built independently. Models are
+     * put in the map in file order, so a repeated group name resolves the same way as a sequential parse.
+     */
+    private void buildGroups(Map<String, CCModel> modelMap) {
+        final CCModel[] built = new CCModel[groups.size()];
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(groups.size());
+        for (int i = 0; i < built.length; i++) {
+            final Group group = groups.get(i);
+            final int index = i;
+            tasks.add(
+                    ForkJoinTask.adapt(
+                            () -> built[index] = createModel(
+                                    group.polys,
+                                    group.polyCount,
+                                    group.vertCount,
+                                    group.uvCount,
+                                    group.normalCount)));
+        }
+
+        if (ForkJoinTask.inForkJoinPool()) ForkJoinTask.invokeAll(tasks);
+        else for (ForkJoinTask<?> task : tasks) task.invoke();
+
+        for (int i = 0; i < built.length; i++) modelMap.put(groups.get(i).name, built[i]);
+    }
+
+    /**
+     * Reads the next line into the line buffer, ending at \n, \r or \r\n like BufferedReader.readLine
+     *
+     * @return False at the end of the stream
+     */
+    private boolean readLine() throws IOException {
+        lineLen = 0;
+        pos = 0;
+        boolean read = false;
+        while (true) {
+            if (bufPos == bufLen) {
+                bufLen = reader.read(buf, 0, buf.length);
+                bufPos = 0;
+                if (bufLen <= 0) {
+                    bufLen = 0;
+                    return read;
+                }
+            }
+
+            char c = buf[bufPos++];
+            if (skipLF) {
+                skipLF = false;
+                if (c == '\n') continue;
+            }
+            read = true;
+            if (c == '\n') return true;
+            if (c == '\r') {
+                skipLF = true;
+                return true;
+            }
+
+            if (lineLen == line.length) line = Arrays.copyOf(line, lineLen * 2);
+            line[lineLen++] = c;
+        }
+    }
+
+    private void skipSpace() {
+        while (pos < lineLen && line[pos] <= ' ') pos++;
+    }
+
+    /**
+     * Reads the remaining numbers on the line, keeping the first three in values
+     *
+     * @return The number of values on the line
+     */
+    private int readValues() {
+        int n = 0;
+        while (pos < lineLen) {
+            double d = readDouble();
+            if (n < values.length) values[n] = d;
+            n++;
+            skipSpace();
+        }
+        return n;
+    }
+
+    /**
+     * Reads a decimal number at pos. Numbers of up to 15 significant digits with a small exponent are computed exactly
+     * from their digits, as one correctly rounded multiply or divide of two exact doubles gives the same result as
+     * Double.parseDouble. Anything else is handed to Double.parseDouble.
+     */
+    private double readDouble() {
+        int start = pos;
+        int end = start;
+        while (end < lineLen && line[end] > ' ') end++;
+        pos = end;
+
+        int i = start;
+        boolean negative = false;
+        if (line[i] == '-' || line[i] == '+') negative = line[i++] == '-';
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean point = false;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (mantissa == 0 && c == '0') {
+                    if (point) exponent--;
+                    continue;
+                }
+                if (++digits > 15) break;
+                mantissa = mantissa * 10 + (c - '0');
+                if (point) exponent--;
+            } else if (c == '.' && !point) point = true;
+            else break;
+        }
+
+        if (i == end && anyDigit && exponent >= -22) {
+            double d = exponent == 0 ? mantissa : mantissa / POW10[-exponent];
+            return negative ? -d : d;
+        }
+        return parseSlow(start, end);
+    }
+
+    private double parseSlow(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = line[i];
+            if ((c < '0' || c > '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') throw malformed();
+        }
+        try {
+            return Double.parseDouble(new String(line, start, end - start));
+        } catch (NumberFormatException e) {
+            throw malformed();
+        }
+    }
+
+    /**
+     * Reads the remaining v/vt/vn tokens on the line into face
+     *
+     * @return The number of polygon vertices
+     */
+    private int readFace() {
+        int n = 0;
+        while (pos < lineLen) {
+            face = ensure(face, n * 3 + 3);
+            int component = 0;
+            int value = 0;
+            face[n * 3] = face[n * 3 + 1] = face[n * 3 + 2] = 0;
+            for (; pos < lineLen && line[pos] > ' '; pos++) {
+                char c = line[pos];
+                if (c == '/') {
+                    if (++component > 2) throw malformed();
+                    value = 0;
+                } else if (c >= '0' && c <= '9') {
+                    if (value > (Integer.MAX_VALUE - 9) / 10) throw malformed();
+                    value = value * 10 + (c - '0');
+                    face[n * 3 + component] = value;
+                } else throw malformed();
+            }
+            n++;
+            skipSpace();
+        }
+        return n;
+    }
+
+    private String readName() {
+        StringBuilder name = new StringBuilder(lineLen - pos);
+        while (pos < lineLen) {
+            if (name.length() > 0) name.append(' ');
+            int start = pos;
+            while (pos < lineLen && line[pos] > ' ') pos++;
+            name.append(line, start, pos - start);
+            skipSpace();
+        }
+        return name.toString();
+    }
+
+    private IllegalArgumentException malformed() {
+        return new IllegalArgumentException("Malformed line: " + new String(line, 0, lineLen).trim());
+    }
+
+    private void addPolyVertex(int i) {
+        polys = ensure(polys, polyCount * 3 + 3);
+        System.arraycopy(face, i * 3, polys, polyCount * 3, 3);
+        polyCount++;
+    }
+
+    /**
+     * Same order as {@link CCModel#triangulate}
+     */
+    private void triangulate(int n) {
+        for (int i = 2; i < n; i++) {
+            addPolyVertex(0);
+            addPolyVertex(i);
+            addPolyVertex(i - 1);
+        }
+    }
+
+    /**
+     * Same order as {@link CCModel#quadulate}
+     */
+    private void quadulate(int n) {
+        if (n == 4) {
+            addPolyVertex(0);
+            addPolyVertex(3);
+            addPolyVertex(2);
+            addPolyVertex(1);
+        } else {
+            for (int i = 2; i < n; i++) {
+                addPolyVertex(0);
+                addPolyVertex(i);
+                addPolyVertex(i - 1);
+                addPolyVertex(i - 1);
+            }
+        }
+    }
+
+    /**
+     * Builds a model from the polygons of a group, like
+     * {@link CCModel#createModel(java.util.List, java.util.List, java.util.List, int, java.util.List)}
+     */
+    private CCModel createModel(int[] polys, int polyCount, int vertCount, int uvCount, int normalCount) {
+        if (polyCount < vp || polyCount % vp != 0)
+            throw new IllegalArgumentException("Invalid number of vertices for model: " + polyCount);
+
+        boolean hasNormals = polys[2] > 0;
+        CCModel model = CCModel.newModel(vertexMode, polyCount);
+        Vector3[] modelNormals = hasNormals ? model.getOrAllocate(CCRenderState.normalAttrib) : null;
+
+        for (int i = 0; i < polyCount; i++) {
+            int v = checkIndex(polys[i * 3], vertCount) * 3;
+            int t = polys[i * 3 + 1];
+            int n = polys[i * 3 + 2];
+            if (n > 0 != hasNormals) throw new IllegalArgumentException("Normals are an all or nothing deal here.");
+
+            double u = 0, w = 0;
+            if (t > 0) {
+                t = checkIndex(t, uvCount) * 2;
+                u = uvs[t];
+                w = uvs[t + 1];
+            }
+            model.verts[i] = new Vertex5(verts[v], verts[v + 1], verts[v + 2], u, w);
+            if (hasNormals) {
+                n = checkIndex(n, normalCount) * 3;
+                modelNormals[i] = new Vector3(normals[n], normals[n + 1], normals[n + 2]);
+            }
+        }
+
+        return model;
+    }
+
+    /**
+     * @return The 0 based index of a 1 based obj index
+     */
+    private static int checkIndex(int index, int count) {
+        if (index < 1 || index > count)
+            throw new IndexOutOfBoundsException("Index: " + (index - 1) + ", Size: " + count);
+        return index - 1;
+    }
+
+    private static double[] ensure(double[] a, int size) {
+        return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, a.length * 2));
+    }
+
+    private static int[] ensure(int[] a, int size) {
+        return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, a.length * 2));
+    }
+}
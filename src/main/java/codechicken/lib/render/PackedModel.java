@@ -0,0 +1,331 @@
+package codechicken.lib.render;
+
+import java.util.ArrayList;
+
+import codechicken.lib.lighting.LC;
+import codechicken.lib.render.uv.UV;
+import codechicken.lib.render.uv.UVTransformation;
+import codechicken.lib.util.Copyable;
+import codechicken.lib.vec.Transformation;
+import codechicken.lib.vec.Vector3;
+
+/**
+ * A CCModel stored in flat primitive arrays rather than one Vertex5, Vector3 and UV per vertex. Renders like a CCModel,
+ * with batched pipelines reading positions, UVs, normals and light coords straight from the arrays.
+ * <p>
+ * {@link #getVertices()}, the normal array and the LC array are views for callers that expect a CCModel's objects,
+ * such as per vertex rendering. They are created on first use and cached. Views are copies, writes to them are not seen
+ * by this model.
+ */
+@SuppressWarnings("ForLoopReplaceableByForEach")
+public class PackedModel implements CCRenderState.IVertexSource, Copyable<PackedModel> {
+
+    public final int vertexMode;
+    public final int vp;
+    public final int vertexCount;
+
+    /**
+     * x, y, z for each vertex
+     */
+    public final double[] positions;
+    /**
+     * u, v for each vertex
+     */
+    public final double[] uvs;
+    public final int[] tex;
+    /**
+     * nx, ny, nz for each vertex, or null if the model has no normals
+     */
+    public final float[] normals;
+    /**
+     * LC side for each vertex and fa, fb, fc, fd in lcWeights, or null if the model has no light coords
+     */
+    public final int[] lcSides;
+    public final float[] lcWeights;
+    /**
+     * Other attributes, including colour, lighting and side, by attribute index. Normals and LCs are null here
+     */
+    private final ArrayList<Object> attributes;
+
+    private Vertex5[] vertexView;
+    private Vector3[] normalView;
+    private LC[] lcView;
+
+    public PackedModel(CCModel model) {
+        vertexMode = model.vertexMode;
+        vp = model.vp;
+        vertexCount = model.verts.length;
+
+        positions = new double[vertexCount * 3];
+        uvs = new double[vertexCount * 2];
+        tex = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            Vertex5 v = model.verts[i];
+            positions[i * 3] = v.vec.x;
+            positions[i * 3 + 1] = v.vec.y;
+            positions[i * 3 + 2] = v.vec.z;
+            uvs[i * 2] = v.uv.u;
+            uvs[i * 2 + 1] = v.uv.v;
+            tex[i] = v.uv.tex;
+        }
+
+        Vector3[] n = model.normals();
+        if (n != null) {
+            normals = new float[vertexCount * 3];
+            for (int i = 0; i < vertexCount; i++) {
+                normals[i * 3] = (float) n[i].x;
+                normals[i * 3 + 1] = (float) n[i].y;
+                normals[i * 3 + 2] = (float) n[i].z;
+            }
+        } else normals = null;
+
+        LC[] lc = model.getAttributes(CCRenderState.lightCoordAttrib);
+        if (lc != null) {
+            lcSides = new int[vertexCount];
+            lcWeights = new float[vertexCount * 4];
+            for (int i = 0; i < vertexCount; i++) {
+                lcSides[i] = lc[i].side;
+                lcWeights[i * 4] = lc[i].fa;
+                lcWeights[i * 4 + 1] = lc[i].fb;
+                lcWeights[i * 4 + 2] = lc[i].fc;
+                lcWeights[i * 4 + 3] = lc[i].fd;
+            }
+        } else {
+            lcSides = null;
+            lcWeights = null;
+        }
+
+        attributes = copyAttributes(model.attributes, vertexCount);
+        if (CCRenderState.normalAttrib.attributeIndex < attributes.size())
+            attributes.set(CCRenderState.normalAttrib.attributeIndex, null);
+        if (CCRenderState.lightCoordAttrib.attributeIndex < attributes.size())
+            attributes.set(CCRenderState.lightCoordAttrib.attributeIndex, null);
+    }
+
+    /**
+     * Wraps the given arrays without copying. Attributes must not contain normals or light coords
+     */
+    PackedModel(int vertexMode, double[] positions, double[] uvs, int[] tex, float[] normals, int[] lcSides,
+            float[] lcWeights, ArrayList<Object> attributes) {
+        this.vertexMode = vertexMode;
+        vp = vertexMode == 7 ? 4 : 3;
+        vertexCount = tex.length;
+        this.positions = positions;
+        this.uvs = uvs;
+        this.tex = tex;
+        this.normals = normals;
+        this.lcSides = lcSides;
+        this.lcWeights = lcWeights;
+        this.attributes = attributes;
+    }
+
+    private PackedModel(PackedModel model) {
+        vertexMode = model.vertexMode;
+        vp = model.vp;
+        vertexCount = model.vertexCount;
+        positions = model.positions.clone();
+        uvs = model.uvs.clone();
+        tex = model.tex.clone();
+        normals = model.normals == null ? null : model.normals.clone();
+        lcSides = model.lcSides == null ? null : model.lcSides.clone();
+        lcWeights = model.lcWeights == null ? null : model.lcWeights.clone();
+        attributes = copyAttributes(model.attributes, vertexCount);
+    }
+
+    private static ArrayList<Object> copyAttributes(ArrayList<Object> src, int length) {
+        ArrayList<Object> copy = new ArrayList<>(src.size());
+        for (int i = 0; i < src.size(); i++) {
+            Object array = src.get(i);
+            copy.add(
+                    array == null ? null
+                            : CCRenderState.copyOf(
+                                    (CCRenderState.VertexAttribute) CCRenderState.getAttribute(i),
+                                    array,
+                                    length));
+        }
+        return copy;
+    }
+
+    @Override
+    public PackedModel copy() {
+        return new PackedModel(this);
+    }
+
+    /**
+     * @return A CCModel with the same vertices and attributes
+     */
+    public CCModel unpack() {
+        CCModel model = CCModel.newModel(vertexMode, vertexCount);
+        Vertex5[] verts = getVertices();
+        for (int i = 0; i < vertexCount; i++) model.verts[i] = verts[i].copy();
+        for (int i = 0; i < CCRenderState.attributeCount(); i++) {
+            CCRenderState.VertexAttribute attr = CCRenderState.getAttribute(i);
+            Object array = getAttributes(attr);
+            if (array == null) continue;
+
+            while (model.attributes.size() <= i) model.attributes.add(null);
+            model.attributes.set(i, CCRenderState.copyOf(attr, array, vertexCount));
+        }
+        return model;
+    }
+
+    @Override
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public Vertex5[] getVertices() {
+        if (vertexView == null) {
+            Vertex5[] verts = new Vertex5[vertexCount];
+            for (int i = 0; i < vertexCount; i++) verts[i] = new Vertex5(
+                    positions[i * 3],
+                    positions[i * 3 + 1],
+                    positions[i * 3 + 2],
+                    uvs[i * 2],
+                    uvs[i * 2 + 1],
+                    tex[i]);
+            vertexView = verts;
+        }
+        return vertexView;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttributes(CCRenderState.VertexAttribute<T> attr) {
+        if (attr == CCRenderState.normalAttrib) return (T) normalView();
+        if (attr == CCRenderState.lightCoordAttrib) return (T) lcView();
+        return attr.attributeIndex < attributes.size() ? (T) attributes.get(attr.attributeIndex) : null;
+    }
+
+    private Vector3[] normalView() {
+        if (normalView == null && normals != null) {
+            Vector3[] view = new Vector3[vertexCount];
+            for (int i = 0; i < vertexCount; i++)
+                view[i] = new Vector3(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]);
+            normalView = view;
+        }
+        return normalView;
+    }
+
+    private LC[] lcView() {
+        if (lcView == null && lcSides != null) {
+            LC[] view = new LC[vertexCount];
+            for (int i = 0; i < vertexCount; i++) view[i] = new LC(
+                    lcSides[i],
+                    lcWeights[i * 4],
+                    lcWeights[i * 4 + 1],
+                    lcWeights[i * 4 + 2],
+                    lcWeights[i * 4 + 3]);
+            lcView = view;
+        }
+        return lcView;
+    }
+
+    @Override
+    public boolean hasAttribute(CCRenderState.VertexAttribute<?> attr) {
+        if (attr == CCRenderState.normalAttrib) return normals != null;
+        if (attr == CCRenderState.lightCoordAttrib) return lcSides != null;
+        return attr.attributeIndex < attributes.size() && attributes.get(attr.attributeIndex) != null;
+    }
+
+    @Override
+    public boolean canFillBatch(CCRenderState.VertexAttribute<?> attr) {
+        return attr == CCRenderState.normalAttrib && normals != null
+                || attr == CCRenderState.lightCoordAttrib && lcSides != null;
+    }
+
+    @Override
+    public void fillBatch(CCRenderState.VertexAttribute<?> attr, VertexBatch batch) {
+        int first = batch.first;
+        if (attr == CCRenderState.lightCoordAttrib) for (int i = 0; i < batch.count; i++) {
+            int w = (first + i) * 4;
+            batch.lc[i].set(lcSides[first + i], lcWeights[w], lcWeights[w + 1], lcWeights[w + 2], lcWeights[w + 3]);
+        }
+        else if (batch.floats) for (int i = 0; i < batch.count; i++) {
+            int n = (first + i) * 3;
+            batch.nxf[i] = normals[n];
+            batch.nyf[i] = normals[n + 1];
+            batch.nzf[i] = normals[n + 2];
+        }
+        else for (int i = 0; i < batch.count; i++) {
+            int n = (first + i) * 3;
+            batch.nx[i] = normals[n];
+            batch.ny[i] = normals[n + 1];
+            batch.nz[i] = normals[n + 2];
+        }
+    }
+
+    @Override
+    public void prepareVertex(CCRenderState state) {}
+
+    @Override
+    public boolean fillBatch(VertexBatch batch) {
+        int first = batch.first;
+        if (batch.floats) for (int i = 0; i < batch.count; i++) {
+            int p = (first + i) * 3, t = (first + i) * 2;
+            batch.xf[i] = (float) positions[p];
+            batch.yf[i] = (float) positions[p + 1];
+            batch.zf[i] = (float) positions[p + 2];
+            batch.uf[i] = (float) uvs[t];
+            batch.vf[i] = (float) uvs[t + 1];
+        }
+        else for (int i = 0; i < batch.count; i++) {
+            int p = (first + i) * 3, t = (first + i) * 2;
+            batch.x[i] = positions[p];
+            batch.y[i] = positions[p + 1];
+            batch.z[i] = positions[p + 2];
+            batch.u[i] = uvs[t];
+            batch.v[i] = uvs[t + 1];
+        }
+        System.arraycopy(tex, first, batch.tex, 0, batch.count);
+        return true;
+    }
+
+    /**
+     * Transforms the stored positions and normals and discards the legacy views
+     */
+    public PackedModel apply(Transformation t) {
+        Vector3 vec = new Vector3();
+        for (int i = 0; i < positions.length; i += 3) {
+            t.apply(vec.set(positions[i], positions[i + 1], positions[i + 2]));
+            positions[i] = vec.x;
+            positions[i + 1] = vec.y;
+            positions[i + 2] = vec.z;
+        }
+        if (normals != null) for (int i = 0; i < normals.length; i += 3) {
+            t.applyN(vec.set(normals[i], normals[i + 1], normals[i + 2]));
+            normals[i] = (float) vec.x;
+            normals[i + 1] = (float) vec.y;
+            normals[i + 2] = (float) vec.z;
+        }
+        vertexView = null;
+        normalView = null;
+        return this;
+    }
+
+    public PackedModel apply(UVTransformation uvt) {
+        UV uv = new UV();
+        for (int i = 0; i < vertexCount; i++) {
+            uvt.apply(uv.set(uvs[i * 2], uvs[i * 2 + 1], tex[i]));
+            uvs[i * 2] = uv.u;
+            uvs[i * 2 + 1] = uv.v;
+            tex[i] = uv.tex;
+        }
+        vertexView = null;
+        return this;
+    }
+
+    public void render(CCRenderState state, CCRenderState.IVertexOperation... ops) {
+        render(state, 0, vertexCount, ops);
+    }
+
+    public void render(CCRenderState.IVertexOperation... ops) {
+        render(CCRenderState.instance(), 0, vertexCount, ops);
+    }
+
+    public void render(CCRenderState state, int start, int end, CCRenderState.IVertexOperation... ops) {
+        state.setPipeline(this, start, end, ops);
+        state.render();
+    }
+}
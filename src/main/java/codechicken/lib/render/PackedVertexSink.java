@@ -0,0 +1,119 @@
+package codechicken.lib.render;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes vertices into a direct ByteBuffer without touching GL or the Tessellator. Vertices are interleaved in the same
+ * 32 byte layout as the Tessellator: float x, y, z, u, v, colour as RGBA bytes, the normal as 3 signed bytes plus
+ * padding and int brightness. Suitable for chunk threads filling their own buffer and for headless benchmarks.
+ */
+public class PackedVertexSink implements IVertexSink {
+
+    public static final int STRIDE = 32;
+
+    private ByteBuffer buffer;
+    private int mode = 7;
+    private int vertexCount;
+
+    private int colour = -1;
+    private int brightness;
+    private int normal;
+
+    public PackedVertexSink(int initialVertices) {
+        buffer = ByteBuffer.allocateDirect(Math.max(initialVertices, 1) * STRIDE).order(ByteOrder.nativeOrder());
+    }
+
+    public PackedVertexSink() {
+        this(1024);
+    }
+
+    @Override
+    public void startDrawing(int mode) {
+        this.mode = mode;
+        reset();
+    }
+
+    @Override
+    public void setNormal(float x, float y, float z) {
+        normal = ((byte) (x * 127) & 0xFF) | ((byte) (y * 127) & 0xFF) << 8 | ((byte) (z * 127) & 0xFF) << 16;
+    }
+
+    @Override
+    public void setColour(int colour) {
+        this.colour = colour;
+    }
+
+    @Override
+    public void setBrightness(int brightness) {
+        this.brightness = brightness;
+    }
+
+    @Override
+    public void addVertex(double x, double y, double z, double u, double v) {
+        ensureCapacity(1);
+        buffer.putFloat((float) x).putFloat((float) y).putFloat((float) z);
+        buffer.putFloat((float) u).putFloat((float) v);
+        buffer.put((byte) (colour >>> 24)).put((byte) (colour >> 16)).put((byte) (colour >> 8)).put((byte) colour);
+        buffer.putInt(normal);
+        buffer.putInt(brightness);
+        vertexCount++;
+    }
+
+    @Override
+    public void addVertices(float[] data, int start, int count, boolean hasNormals, boolean emitNormals) {
+        ensureCapacity(count);
+        ByteBuffer buffer = this.buffer;
+        int stride = hasNormals ? 8 : 5;
+        for (int i = start * stride, end = (start + count) * stride; i < end; i += stride) {
+            if (emitNormals) setNormal(data[i + 5], data[i + 6], data[i + 7]);
+            buffer.putFloat(data[i]).putFloat(data[i + 1]).putFloat(data[i + 2]);
+            buffer.putFloat(data[i + 3]).putFloat(data[i + 4]);
+            buffer.put((byte) (colour >>> 24)).put((byte) (colour >> 16)).put((byte) (colour >> 8)).put((byte) colour);
+            buffer.putInt(normal);
+            buffer.putInt(brightness);
+        }
+        vertexCount += count;
+    }
+
+    @Override
+    public void draw() {}
+
+    /**
+     * Ensures room for a further count vertices, reallocating the buffer if necessary
+     */
+    public void ensureCapacity(int count) {
+        if (buffer.remaining() >= count * STRIDE) return;
+
+        int size = Math.max(buffer.capacity() * 2, buffer.position() + count * STRIDE);
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+
+    /**
+     * Discards all written vertices
+     */
+    public void reset() {
+        buffer.clear();
+        vertexCount = 0;
+    }
+
+    /**
+     * @return A read only view of the written vertex data, from 0 to vertexCount() * STRIDE
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.flip();
+        return view.order(ByteOrder.nativeOrder());
+    }
+
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+}
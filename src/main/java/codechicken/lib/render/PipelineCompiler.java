@@ -0,0 +1,224 @@
+package codechicken.lib.render;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import codechicken.lib.asm.CC_ClassWriter;
+import codechicken.lib.lighting.LightMatrix;
+import codechicken.lib.render.CCRenderState.IBatchVertexOperation;
+import codechicken.lib.render.CCRenderState.IVertexOperation;
+import codechicken.lib.render.uv.IconTransformation;
+import codechicken.lib.vec.Matrix4;
+import codechicken.lib.vec.Rotation;
+import codechicken.lib.vec.Scale;
+import codechicken.lib.vec.TransformationList;
+import codechicken.lib.vec.Translation;
+
+/**
+ * Generates a class per sorted pipeline signature that calls each operation from its own call site, typed to the
+ * operation's class. Every site in the generated method only ever sees one receiver type, so the JIT can inline the
+ * built-in operations into a single straight-line method instead of dispatching through the pipeline list.
+ * <p>
+ * Enabled with {@code -Dccl.compilePipelines=true}. Only pipelines made entirely of registered operation classes are
+ * compiled, anything else is interpreted by CCRenderPipeline as usual. The generated class has entry points for both
+ * the per vertex and the batched path, so compiling doesn't change which path {@link CCRenderState#render()} takes.
+ */
+public class PipelineCompiler {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("ccl.compilePipelines", "false"));
+
+    public interface CompiledPipeline {
+
+        /**
+         * Runs the pipeline on state
+         *
+         * @param ops The sorted operations this pipeline was compiled for
+         */
+        void operate(CCRenderState state, IVertexOperation[] ops);
+
+        /**
+         * Runs the pipeline on batch. Only called for pipelines that satisfy {@link CCRenderPipeline#canBatch()}
+         *
+         * @param ops The sorted operations this pipeline was compiled for
+         */
+        void operateBatch(CCRenderState state, VertexBatch batch, IVertexOperation[] ops);
+    }
+
+    private static class Loader extends ClassLoader {
+
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static final CompiledPipeline INTERPRETED = new CompiledPipeline() {
+
+        @Override
+        public void operate(CCRenderState state, IVertexOperation[] ops) {}
+
+        @Override
+        public void operateBatch(CCRenderState state, VertexBatch batch, IVertexOperation[] ops) {}
+    };
+
+    private static final Set<Class<?>> compilable = ConcurrentHashMap.newKeySet();
+    private static final Map<List<Class<?>>, CompiledPipeline> cache = new ConcurrentHashMap<>();
+    private static final Loader loader = new Loader(PipelineCompiler.class.getClassLoader());
+    private static int nextClassID;
+
+    static {
+        register(Matrix4.class);
+        register(Translation.class);
+        register(Scale.class);
+        register(Rotation.class);
+        register(TransformationList.class);
+        register(LightMatrix.class);
+        register(IconTransformation.class);
+        register(CCRenderState.normalAttrib.getClass());
+        register(CCRenderState.colourAttrib.getClass());
+        register(CCRenderState.lightingAttrib.getClass());
+        register(CCRenderState.sideAttrib.getClass());
+        register(CCRenderState.lightCoordAttrib.getClass());
+    }
+
+    /**
+     * Allows pipelines containing operations of exactly this class to be compiled
+     */
+    public static void register(Class<? extends IVertexOperation> opClass) {
+        compilable.add(opClass);
+    }
+
+    /**
+     * @return A compiled form of ops, or null if the pipeline contains an operation that is not registered
+     */
+    public static CompiledPipeline compile(List<IVertexOperation> ops) {
+        if (ops.isEmpty()) return null;
+
+        Class<?>[] types = new Class<?>[ops.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = ops.get(i).getClass();
+            if (!compilable.contains(types[i])) return null;
+        }
+
+        CompiledPipeline compiled = cache.computeIfAbsent(Arrays.asList(types), PipelineCompiler::generate);
+        return compiled == INTERPRETED ? null : compiled;
+    }
+
+    private static CompiledPipeline generate(List<Class<?>> types) {
+        String name;
+        synchronized (PipelineCompiler.class) {
+            name = "codechicken/lib/render/compiled/Pipeline" + nextClassID++;
+        }
+        try {
+            byte[] bytes = generate(name, types);
+            return (CompiledPipeline) loader.define(name.replace('/', '.'), bytes).newInstance();
+        } catch (Throwable t) {
+            LogManager.getLogger("CodeChickenLib").error("Failed to compile render pipeline " + types, t);
+            return INTERPRETED;
+        }
+    }
+
+    private static byte[] generate(String name, List<Class<?>> types) {
+        // straight-line code, no frames to compute
+        ClassWriter cw = new CC_ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(
+                V1_8,
+                ACC_PUBLIC | ACC_FINAL | ACC_SUPER,
+                name,
+                null,
+                "java/lang/Object",
+                new String[] { Type.getInternalName(CompiledPipeline.class) });
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        generateOperate(cw, types, false);
+        generateOperate(cw, types, true);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Generates operate, or operateBatch if batch is set, calling the matching method of each operation in order
+     */
+    private static void generateOperate(ClassWriter cw, List<Class<?>> types, boolean batch) {
+        String stateDesc = Type.getDescriptor(CCRenderState.class);
+        String batchDesc = batch ? Type.getDescriptor(VertexBatch.class) : "";
+        String opDesc = Type.getDescriptor(IVertexOperation.class);
+        String method = batch ? "operateBatch" : "operate";
+        String callDesc = "(" + stateDesc + batchDesc + ")V";
+        Class<?> opInterface = batch ? IBatchVertexOperation.class : IVertexOperation.class;
+        int opsVar = batch ? 3 : 2;
+
+        String desc = "(" + stateDesc + batchDesc + "[" + opDesc + ")V";
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, method, desc, null, null);
+        mv.visitCode();
+        for (int i = 0; i < types.size(); i++) {
+            Class<?> owner = accessibleOwner(types.get(i));
+            if (owner != null && !opInterface.isAssignableFrom(owner)) owner = null;
+            mv.visitVarInsn(ALOAD, opsVar);
+            mv.visitLdcInsn(i);
+            mv.visitInsn(AALOAD);
+            if (owner == null) {
+                if (batch) mv.visitTypeInsn(CHECKCAST, Type.getInternalName(opInterface));
+                mv.visitVarInsn(ALOAD, 1);
+                if (batch) mv.visitVarInsn(ALOAD, 2);
+                mv.visitMethodInsn(INVOKEINTERFACE, Type.getInternalName(opInterface), method, callDesc, true);
+                continue;
+            }
+
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(owner));
+            mv.visitVarInsn(ALOAD, 1);
+            if (batch) mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(owner), method, callDesc, false);
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * @return The most specific public class of type, as the generated class lives in its own class loader and cannot
+     *         see package private classes. Null if there is none below Object.
+     */
+    private static Class<?> accessibleOwner(Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            if (Modifier.isPublic(c.getModifiers()) && isPublicNesting(c)) return c;
+        }
+        return null;
+    }
+
+    private static boolean isPublicNesting(Class<?> c) {
+        for (Class<?> outer = c.getEnclosingClass(); outer != null; outer = outer.getEnclosingClass())
+            if (!Modifier.isPublic(outer.getModifiers())) return false;
+        return true;
+    }
+
+    /**
+     * @return The number of generated classes
+     */
+    public static int compiledCount() {
+        int count = 0;
+        for (CompiledPipeline compiled : cache.values()) if (compiled != INTERPRETED) count++;
+        return count;
+    }
+}
@@ -2,16 +2,22 @@ package codechicken.lib.render;
 
 import java.awt.image.BufferedImage;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -24,6 +30,7 @@ import net.minecraft.util.ResourceLocation;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
 
 import codechicken.lib.render.uv.UV;
 import codechicken.lib.render.uv.UVScale;
@@ -140,6 +147,154 @@ public class QBImporter {
         }
     }
 
+    /**
+     * MaxRects packer, placing each image in the free rectangle that leaves the shortest side over, rotated if that
+     * fits better. Free rectangles overlap, so space beside a placed image stays usable in both directions. Unlike
+     * {@link ImagePackNode}, bins aren't restricted to powers of two.
+     */
+    private static class MaxRectsPacker {
+
+        /**
+         * Bins are trimmed in multiples of 16 so textures can still be mipmapped
+         */
+        static final int STEP = 16;
+
+        List<Rectangle4i> free = new ArrayList<Rectangle4i>();
+
+        MaxRectsPacker(int w, int h) {
+            free.add(new Rectangle4i(0, 0, w, h));
+        }
+
+        boolean insert(QBImage img) {
+            Rectangle4i best = null;
+            boolean rotated = false;
+            int bestShort = Integer.MAX_VALUE;
+            int bestLong = Integer.MAX_VALUE;
+            for (Rectangle4i r : free) for (int rot = 0; rot < 2; rot++) {
+                int w = rot == 0 ? img.width() : img.height();
+                int h = rot == 0 ? img.height() : img.width();
+                if (w > r.w || h > r.h) continue;
+
+                int shortSide = Math.min(r.w - w, r.h - h);
+                int longSide = Math.max(r.w - w, r.h - h);
+                if (shortSide < bestShort || shortSide == bestShort && longSide < bestLong) {
+                    best = new Rectangle4i(r.x, r.y, w, h);
+                    rotated = rot == 1;
+                    bestShort = shortSide;
+                    bestLong = longSide;
+                }
+            }
+            if (best == null) return false;
+
+            img.packSlot = best;
+            img.packT = new ImageTransform(rotated ? 4 : 0);
+            split(best);
+            return true;
+        }
+
+        private void split(Rectangle4i used) {
+            List<Rectangle4i> kept = new ArrayList<Rectangle4i>();
+            List<Rectangle4i> pieces = new ArrayList<Rectangle4i>();
+            for (Rectangle4i f : free) {
+                if (!f.intersects(used)) {
+                    kept.add(f);
+                    continue;
+                }
+                if (used.x > f.x) pieces.add(new Rectangle4i(f.x, f.y, used.x - f.x, f.h));
+                if (used.x + used.w < f.x + f.w)
+                    pieces.add(new Rectangle4i(used.x + used.w, f.y, f.x + f.w - used.x - used.w, f.h));
+                if (used.y > f.y) pieces.add(new Rectangle4i(f.x, f.y, f.w, used.y - f.y));
+                if (used.y + used.h < f.y + f.h)
+                    pieces.add(new Rectangle4i(f.x, used.y + used.h, f.w, f.y + f.h - used.y - used.h));
+            }
+
+            // drop pieces contained in another free rectangle. The kept rectangles already don't contain each other,
+            // and can't be inside a piece as pieces are cut from free rectangles
+            List<Rectangle4i> added = new ArrayList<Rectangle4i>();
+            outer: for (Rectangle4i p : pieces) {
+                for (Rectangle4i k : kept) if (contains(k, p)) continue outer;
+                for (Rectangle4i q : added) if (contains(q, p)) continue outer;
+                for (Iterator<Rectangle4i> it = added.iterator(); it.hasNext();)
+                    if (contains(p, it.next())) it.remove();
+                added.add(p);
+            }
+            kept.addAll(added);
+            free = kept;
+        }
+
+        private static boolean contains(Rectangle4i a, Rectangle4i b) {
+            return b.x >= a.x && b.y >= a.y && b.x + b.w <= a.x + a.w && b.y + b.h <= a.y + a.h;
+        }
+
+        /**
+         * Packs images into the smallest power of two bin that fits, growing as {@link ImagePackNode} does, then
+         * shrinks it in steps of {@link #STEP} while everything still fits
+         *
+         * @return The bin
+         */
+        public static Rectangle4i pack(List<QBImage> images, boolean square) {
+            Collections.sort(images);
+
+            int area = 0;
+            for (QBImage img : images) area += img.area();
+
+            Rectangle4i bin = new Rectangle4i(0, 0, 2, 2);
+            while (bin.area() < area) ImagePackNode.nextSize(bin, square);
+            while (!fits(images, bin.w, bin.h)) ImagePackNode.nextSize(bin, square);
+
+            if (square) shrink(images, bin, area, true, true);
+            else if (bin.w >= bin.h) { // trim the longer side first, it frees the most area
+                shrink(images, bin, area, true, false);
+                shrink(images, bin, area, false, true);
+            } else {
+                shrink(images, bin, area, false, true);
+                shrink(images, bin, area, true, false);
+            }
+
+            fits(images, bin.w, bin.h); // the last attempt may have failed, place the images again
+            return bin;
+        }
+
+        /**
+         * Binary searches for the smallest multiple of {@link #STEP} the width and/or height of bin can be trimmed to
+         */
+        private static void shrink(List<QBImage> images, Rectangle4i bin, int area, boolean width, boolean height) {
+            int size = width ? bin.w : bin.h;
+            if (size % STEP != 0) return;
+
+            int lo = 1, hi = size / STEP; // in steps, hi is known to fit
+            while (lo < hi) {
+                int mid = (lo + hi) / 2;
+                int w = width ? mid * STEP : bin.w;
+                int h = height ? mid * STEP : bin.h;
+                if (w * h >= area && fits(images, w, h)) hi = mid;
+                else lo = mid + 1;
+            }
+
+            if (width) bin.w = hi * STEP;
+            if (height) bin.h = hi * STEP;
+        }
+
+        private static boolean fits(List<QBImage> images, int w, int h) {
+            MaxRectsPacker packer = new MaxRectsPacker(w, h);
+            for (QBImage img : images) if (!packer.insert(img)) return false;
+            return true;
+        }
+
+        public static BufferedImage toImage(Rectangle4i bin, List<QBImage> images) {
+            BufferedImage img = new BufferedImage(bin.w, bin.h, BufferedImage.TYPE_INT_ARGB);
+            for (QBImage packed : images) {
+                Rectangle4i rect = packed.packSlot;
+                ImageTransform t = packed.packT;
+                for (int u = 0; u < rect.w; u++) for (int v = 0; v < rect.h; v++) {
+                    int rgba = t.access(packed, u, v);
+                    img.setRGB(u + rect.x, v + rect.y, rgba >>> 8 | rgba << 24);
+                }
+            }
+            return img;
+        }
+    }
+
     private static class ImageTransform {
 
         int transform;
@@ -189,8 +344,92 @@ public class QBImporter {
         }
     }
 
+    /**
+     * Distinct images by {@link QBImage#canonicalHash}, so duplicates are found without comparing against every image.
+     * Images are first grouped by a single pass key of their size and colours, which every transform shares, and only
+     * hashed once another image with the same key turns up. Most large texture planes are unique.
+     */
+    private static class ImageIndex {
+
+        /**
+         * The first image with each {@link #quickKey}, null once it has been hashed
+         */
+        private final Map<Long, QBImage> byKey = new HashMap<Long, QBImage>();
+        private final Map<Long, List<QBImage>> byHash = new HashMap<Long, List<QBImage>>();
+        private QBImage lastImg;
+        private long lastKey;
+        private long lastHash;
+
+        /**
+         * @return A key of the size and the sum of the mixed colours, which ignores pixel order
+         */
+        private static long quickKey(QBImage img) {
+            long sum = 0;
+            for (int[] col : img.data) for (int c : col) sum += (c ^ c >>> 16) * QBImage.HASH_MUL;
+
+            return sum * 31 + ((long) Math.min(img.width(), img.height()) << 32 | Math.max(img.width(), img.height()));
+        }
+
+        /**
+         * @return The images that may be a flip or transpose of img, in the order they were added
+         */
+        public List<QBImage> candidates(QBImage img) {
+            long key = key(img);
+            if (!byKey.containsKey(key)) return Collections.emptyList();
+
+            QBImage first = byKey.get(key);
+            if (first != null) {
+                bucket(hash(first)).add(first);
+                byKey.put(key, null);
+            }
+            List<QBImage> bucket = byHash.get(hash(img));
+            return bucket != null ? bucket : Collections.<QBImage>emptyList();
+        }
+
+        /**
+         * Adds an image that matched no {@link #candidates}
+         */
+        public void add(QBImage img) {
+            long key = key(img);
+            if (!byKey.containsKey(key)) byKey.put(key, img);
+            else bucket(hash(img)).add(img);
+        }
+
+        /**
+         * The keys of the image last passed to {@link #candidates}, for the following {@link #add}
+         */
+        private long key(QBImage img) {
+            if (img != lastImg) {
+                lastImg = img;
+                lastKey = quickKey(img);
+                lastHash = 0;
+            }
+            return lastKey;
+        }
+
+        private long hash(QBImage img) {
+            if (img != lastImg) return img.canonicalHash();
+            if (lastHash == 0) lastHash = img.canonicalHash();
+            return lastHash;
+        }
+
+        private List<QBImage> bucket(long hash) {
+            List<QBImage> bucket = byHash.get(hash);
+            if (bucket == null) byHash.put(hash, bucket = new ArrayList<QBImage>(1));
+            return bucket;
+        }
+
+        public void clear() {
+            byKey.clear();
+            byHash.clear();
+            lastImg = null;
+        }
+    }
+
     public static class QBImage implements Comparable<QBImage> {
 
+        private static final long HASH_MUL = 0x9E3779B97F4A7C15L;
+
         int[][] data;
         ImageTransform packT;
         Rectangle4i packSlot;
@@ -226,6 +465,35 @@ public class QBImporter {
             return null;
         }
 
+        /**
+         * @return A hash of the content that is the same for every flip and transpose of this image, the minimum of the
+         *         hashes of each transform
+         */
+        public long canonicalHash() {
+            int w = width(), h = height();
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < 8; i++) {
+                boolean flipU = (i & 1) != 0, flipV = (i & 2) != 0;
+                long hash;
+                // walks the image as ImageTransform(i).access would, without the per pixel calls
+                if ((i & 4) == 0) {
+                    hash = w * 31L + h;
+                    for (int u = 0; u < w; u++) {
+                        int[] col = data[flipU ? w - 1 - u : u];
+                        for (int v = 0; v < h; v++) hash = (hash + col[flipV ? h - 1 - v : v]) * HASH_MUL;
+                    }
+                } else {
+                    hash = h * 31L + w;
+                    for (int v = 0; v < h; v++) {
+                        int y = flipV ? h - 1 - v : v;
+                        for (int u = 0; u < w; u++) hash = (hash + data[flipU ? w - 1 - u : u][y]) * HASH_MUL;
+                    }
+                }
+                min = Math.min(min, hash ^ hash >>> 29);
+            }
+            return min;
+        }
+
         public boolean equals(QBImage img, ImageTransform t) {
             for (int u = 0; u < img.width(); u++)
                 for (int v = 0; v < img.height(); v++) if (t.access(this, u, v) != img.data[u][v]) return false;
@@ -366,11 +634,11 @@ public class QBImporter {
             ia[sideU >> 1] = c.getSide(sideU ^ 1);
             ia[sideV >> 1] = c.getSide(sideV ^ 1);
             BlockCoord b = BlockCoord.fromAxes(ia);
-            BlockCoord bU = BlockCoord.sideOffsets[sideU];
-            BlockCoord bV = BlockCoord.sideOffsets[sideV];
-            for (int u = 0; u < image.width(); u++) for (int v = 0; v < image.height(); v++)
-                image.data[u][v] = mat.matrix[b.x + bU.x * u + bV.x * v][b.y + bU.y * u + bV.y * v][b.z + bU.z * u
-                        + bV.z * v];
+            int start = mat.index(b.x, b.y, b.z);
+            int du = mat.offset(BlockCoord.sideOffsets[sideU]);
+            int dv = mat.offset(BlockCoord.sideOffsets[sideV]);
+            for (int u = 0; u < image.width(); u++)
+                for (int v = 0; v < image.height(); v++) image.data[u][v] = mat.matrix[start + du * u + dv * v];
 
             return quad;
         }
@@ -381,14 +649,31 @@ public class QBImporter {
         public String name;
         public BlockCoord pos;
         public BlockCoord size;
-        public int[][][] matrix;
+        /**
+         * Voxel colours indexed by {@link #index}, 0 for empty
+         */
+        public int[] matrix;
+
+        public int index(int x, int y, int z) {
+            return x + (y + z * size.y) * size.x;
+        }
+
+        public int get(int x, int y, int z) {
+            return matrix[index(x, y, z)];
+        }
+
+        /**
+         * @return The change in index for a step of offset
+         */
+        public int offset(BlockCoord offset) {
+            return offset.x + (offset.y + offset.z * size.y) * size.x;
+        }
 
         public void readMatrix(DataInputStream din, boolean compressed) throws IOException {
+            int slice = size.x * size.y;
             if (compressed) {
-                int z = 0;
-                while (z < size.z) {
-                    int index = 0;
-
+                for (int z = 0; z < size.z; z++) {
+                    int index = z * slice;
                     while (true) {
                         int data = din.readInt();
 
@@ -398,76 +683,210 @@ public class QBImporter {
                             int count = readTni(din);
                             data = din.readInt();
 
-                            for (int j = 0; j < count; j++, index++) matrix[index % size.x][index / size.x][z] = data;
+                            Arrays.fill(matrix, index, index + count, data);
+                            index += count;
+                        } else {
+                            matrix[index++] = data;
+                        }
+                    }
+                }
+            } else {
+                // stored z, y, x which is the same order as the flat index
+                for (int i = 0; i < matrix.length; i++) matrix[i] = din.readInt();
+            }
+        }
+
+        /**
+         * Decodes the voxels from a little-endian buffer straight into RGBA
+         *
+         * @param bgra If the file stores colours as BGRA
+         */
+        public void readMatrix(ByteBuffer buf, boolean compressed, boolean bgra) {
+            if (compressed) {
+                int slice = size.x * size.y;
+                for (int z = 0; z < size.z; z++) {
+                    int index = z * slice;
+                    while (true) {
+                        int data = buf.getInt();
+
+                        if (data == 6) break; // next slice
+
+                        if (data == 2) { // run
+                            int count = buf.getInt();
+                            int rgba = toRGBA(buf.getInt(), bgra);
+                            Arrays.fill(matrix, index, index + count, rgba);
+                            index += count;
                         } else {
-                            matrix[index % size.x][index / size.x][z] = data;
-                            index++;
+                            matrix[index++] = toRGBA(data, bgra);
                         }
                     }
-                    z++;
                 }
             } else {
-                for (int z = 0; z < size.z; z++)
-                    for (int y = 0; y < size.y; y++) for (int x = 0; x < size.x; x++) matrix[x][y][z] = din.readInt();
+                for (int i = 0; i < matrix.length; i++) matrix[i] = toRGBA(buf.getInt(), bgra);
             }
         }
 
+        /**
+         * @param le The colour bytes of a voxel read as a little-endian int
+         */
+        private static int toRGBA(int le, boolean bgra) {
+            return bgra ? Integer.rotateLeft(le, 8) : Integer.reverseBytes(le);
+        }
+
         public void convertBGRAtoRGBA() {
-            for (int z = 0; z < size.z; z++) for (int y = 0; y < size.y; y++) for (int x = 0; x < size.x; x++) {
-                int i = matrix[x][y][z];
-                matrix[x][y][z] = Integer.reverseBytes(i >>> 8) | i & 0xFF;
+            for (int i = 0; i < matrix.length; i++) {
+                int c = matrix[i];
+                matrix[i] = Integer.reverseBytes(c >>> 8) | c & 0xFF;
             }
         }
 
-        private boolean voxelFull(boolean[][][] solid, CuboidCoord c) {
-            for (BlockCoord b : c) if (matrix[b.x][b.y][b.z] == 0) return false;
-            for (BlockCoord b : c) solid[b.x][b.y][b.z] = false;
-            return true;
+        /**
+         * @return A bitset of the non-empty voxels, indexed by {@link #index}
+         */
+        public long[] occupancy() {
+            long[] bits = new long[(matrix.length + 63) >> 6];
+            for (int i = 0; i < matrix.length; i++) if (matrix[i] != 0) bits[i >> 6] |= 1L << i;
+            return bits;
         }
 
-        private QBCuboid expand(boolean[][][] solid, BlockCoord b) {
-            CuboidCoord c = new CuboidCoord(b);
-            solid[b.x][b.y][b.z] = false;
+        private static boolean isSet(long[] bits, int i) {
+            return (bits[i >> 6] & 1L << i) != 0;
+        }
 
-            for (int s = 0; s < 6; s++) {
-                CuboidCoord slice = c.copy();
-                slice.expand(s ^ 1, -(slice.size(s) - 1));
-                slice.expand(s, 1);
-
-                while (slice.getSide(s) >= 0 && slice.getSide(s) < size.getSide(s)) {
-                    if (!voxelFull(solid, slice)) break;
-                    slice.expand(s ^ 1, -1);
-                    slice.expand(s, 1);
-                    c.expand(s, 1);
-                }
-            }
-            return new QBCuboid(this, c);
+        private static void clear(long[] bits, int i) {
+            bits[i >> 6] &= ~(1L << i);
         }
 
+        private boolean rowSet(long[] bits, int i, int w) {
+            for (int k = 0; k < w; k++) if (!isSet(bits, i + k)) return false;
+            return true;
+        }
+
+        private boolean sliceSet(long[] bits, int i, int w, int h) {
+            for (int j = 0; j < h; j++) if (!rowSet(bits, i + j * size.x, w)) return false;
+            return true;
+        }
+
+        /**
+         * Covers the solid voxels with boxes, greedily extending each in x, then y, then z. Sides that are entirely
+         * against other solid voxels are marked hidden.
+         */
         public List<QBCuboid> rectangulate() {
             List<QBCuboid> list = new ArrayList<QBCuboid>();
-            boolean[][][] solid = new boolean[size.x][size.y][size.z];
-            for (int z = 0; z < size.z; z++)
-                for (int y = 0; y < size.y; y++) for (int x = 0; x < size.x; x++) solid[x][y][z] = matrix[x][y][z] != 0;
+            long[] solid = occupancy();
+            long[] free = solid.clone();
+            int slice = size.x * size.y;
 
-            for (int x = 0; x < size.x; x++) for (int z = 0; z < size.z; z++)
-                for (int y = 0; y < size.y; y++) if (solid[x][y][z]) list.add(expand(solid, new BlockCoord(x, y, z)));
+            for (int z = 0; z < size.z; z++) for (int y = 0; y < size.y; y++) for (int x = 0; x < size.x; x++) {
+                int i = index(x, y, z);
+                if (!isSet(free, i)) continue;
 
-            for (int i = 0; i < list.size(); i++)
-                for (int j = i + 1; j < list.size(); j++) QBCuboid.clip(list.get(i), list.get(j));
+                int w = 1, h = 1, d = 1;
+                while (x + w < size.x && isSet(free, i + w)) w++;
+                while (y + h < size.y && rowSet(free, i + h * size.x, w)) h++;
+                while (z + d < size.z && sliceSet(free, i + d * slice, w, h)) d++;
+
+                for (int k = 0; k < d; k++)
+                    for (int j = 0; j < h; j++) for (int l = 0; l < w; l++) clear(free, i + k * slice + j * size.x + l);
+
+                QBCuboid c = new QBCuboid(this, new CuboidCoord(x, y, z, x + w - 1, y + h - 1, z + d - 1));
+                for (int s = 0; s < 6; s++) if (sideHidden(solid, c.c, s)) c.sides |= 1 << s;
+                list.add(c);
+            }
 
             return list;
         }
 
+        private boolean sideHidden(long[] solid, CuboidCoord c, int side) {
+            int a = side >> 1;
+            int layer = c.getSide(side) + ((side & 1) == 0 ? -1 : 1);
+            if (layer < 0 || layer >= size.getSide(side)) return false;
+
+            int[] min = { c.min.x, c.min.y, c.min.z };
+            int[] max = { c.max.x, c.max.y, c.max.z };
+            int axis = (a + 1) % 3; // sides are ordered y, z, x
+            min[axis] = max[axis] = layer;
+            for (int z = min[2]; z <= max[2]; z++) for (int y = min[1]; y <= max[1]; y++)
+                if (!rowSet(solid, index(min[0], y, z), max[0] - min[0] + 1)) return false;
+            return true;
+        }
+
+        /**
+         * Greedy meshes the visible faces of each side, one layer at a time, merging faces into the largest rectangles
+         * regardless of colour.
+         */
         public List<QBQuad> extractQuads(boolean texturePlanes) {
-            List<QBQuad> quads = new LinkedList<QBQuad>();
-            for (QBCuboid c : rectangulate()) c.extractQuads(quads);
+            List<QBQuad> quads = new ArrayList<QBQuad>();
+            long[] solid = occupancy();
+            int[] dims = { size.x, size.y, size.z };
+            for (int s = 0; s < 6; s++) {
+                int a = ((s >> 1) + 1) % 3; // sides are ordered y, z, x
+                boolean[] mask = new boolean[dims[(a + 1) % 3] * dims[(a + 2) % 3]];
+                for (int d = 0; d < dims[a]; d++) if (faceMask(solid, s, d, mask)) meshLayer(s, d, mask, quads);
+            }
 
             if (texturePlanes) optimisePlanes(quads);
 
             return quads;
         }
 
+        /**
+         * Fills mask with the solid voxels in layer d that are visible from side
+         *
+         * @return true if any are
+         */
+        private boolean faceMask(long[] solid, int side, int d, boolean[] mask) {
+            int[] dims = { size.x, size.y, size.z };
+            int[] strides = { 1, size.x, size.x * size.y };
+            int a = ((side >> 1) + 1) % 3;
+            int ua = (a + 1) % 3;
+            int va = (a + 2) % 3;
+            int step = (side & 1) == 0 ? -1 : 1;
+            boolean edge = d + step < 0 || d + step >= dims[a];
+            int neighbour = step * strides[a];
+
+            boolean any = false;
+            for (int v = 0, m = 0; v < dims[va]; v++) {
+                int i = d * strides[a] + v * strides[va];
+                for (int u = 0; u < dims[ua]; u++, m++, i += strides[ua]) {
+                    boolean face = isSet(solid, i) && (edge || !isSet(solid, i + neighbour));
+                    mask[m] = face;
+                    any |= face;
+                }
+            }
+            return any;
+        }
+
+        private void meshLayer(int side, int d, boolean[] mask, List<QBQuad> quads) {
+            int[] dims = { size.x, size.y, size.z };
+            int a = ((side >> 1) + 1) % 3;
+            int ua = (a + 1) % 3;
+            int va = (a + 2) % 3;
+            int nu = dims[ua], nv = dims[va];
+            int[] min = new int[3];
+            int[] max = new int[3];
+            min[a] = max[a] = d;
+
+            for (int v = 0; v < nv; v++) for (int u = 0; u < nu; u++) {
+                if (!mask[u + v * nu]) continue;
+
+                int w = 1, h = 1;
+                while (u + w < nu && mask[u + w + v * nu]) w++;
+                grow: while (v + h < nv) {
+                    for (int k = 0; k < w; k++) if (!mask[u + k + (v + h) * nu]) break grow;
+                    h++;
+                }
+                for (int j = 0; j < h; j++) Arrays.fill(mask, u + (v + j) * nu, u + w + (v + j) * nu, false);
+
+                min[ua] = u;
+                max[ua] = u + w - 1;
+                min[va] = v;
+                max[va] = v + h - 1;
+                QBCuboid c = new QBCuboid(this, new CuboidCoord(min[0], min[1], min[2], max[0], max[1], max[2]));
+                quads.add(c.extractQuad(side, c.c.bounds()));
+            }
+        }
+
         private void optimisePlanes(List<QBQuad> quads) {
             Multimap<Integer, QBQuad> map = HashMultimap.create();
             for (QBQuad quad : quads) map.put(quad.side | ((int) quad.verts[0].vec.getSide(quad.side)) << 3, quad);
@@ -517,11 +936,11 @@ public class QBImporter {
             return m;
         }
 
-        private static void addImages(List<QBQuad> quads, List<QBImage> images) {
+        private static void addImages(List<QBQuad> quads, List<QBImage> images, ImageIndex index) {
             for (QBQuad q : quads) {
                 QBImage img = q.image;
                 boolean matched = false;
-                for (QBImage img2 : images) {
+                for (QBImage img2 : index.candidates(img)) {
                     ImageTransform t = img.transformTo(img2);
                     if (t != null) {
                         q.t = t;
@@ -530,7 +949,10 @@ public class QBImporter {
                         break;
                     }
                 }
-                if (!matched) images.add(img);
+                if (!matched) {
+                    images.add(img);
+                    index.add(img);
+                }
             }
         }
     }
@@ -539,6 +961,10 @@ public class QBImporter {
     public static final int SQUARETEXTURE = 2;
     public static final int MERGETEXTURES = 4;
     public static final int SCALEMC = 8;
+    /**
+     * Pack textures with {@link MaxRectsPacker} instead of the binary tree packer
+     */
+    public static final int MAXRECTS = 16;
 
     public static class QBModel {
 
@@ -547,6 +973,7 @@ public class QBImporter {
 
         public RasterisedModel toRasterisedModel(int flags) {
             List<QBImage> qbImages = new ArrayList<QBImage>();
+            ImageIndex imageIndex = new ImageIndex();
             List<List<QBQuad>> modelQuads = new ArrayList<List<QBQuad>>();
             List<BufferedImage> images = new ArrayList<BufferedImage>();
 
@@ -554,20 +981,24 @@ public class QBImporter {
             boolean squareTextures = (flags & SQUARETEXTURE) != 0;
             boolean mergeTextures = (flags & MERGETEXTURES) != 0;
             boolean scaleMC = (flags & SCALEMC) != 0;
+            boolean maxRects = (flags & MAXRECTS) != 0;
+            List<Double> efficiency = new ArrayList<Double>();
 
             for (QBMatrix mat : matrices) {
                 List<QBQuad> quads = mat.extractQuads(texturePlanes);
                 modelQuads.add(quads);
-                QBMatrix.addImages(quads, qbImages);
+                QBMatrix.addImages(quads, qbImages, imageIndex);
                 if (!mergeTextures) {
-                    images.add(ImagePackNode.pack(qbImages, squareTextures).toImage());
+                    images.add(packImages(qbImages, squareTextures, maxRects, efficiency));
                     qbImages.clear();
+                    imageIndex.clear();
                 }
             }
 
-            if (mergeTextures) images.add(ImagePackNode.pack(qbImages, squareTextures).toImage());
+            if (mergeTextures) images.add(packImages(qbImages, squareTextures, maxRects, efficiency));
 
             RasterisedModel m = new RasterisedModel(images);
+            m.packEfficiency = efficiency;
             for (int i = 0; i < matrices.length; i++) {
                 QBMatrix mat = matrices[i];
                 BufferedImage img = images.get(mergeTextures ? 0 : i);
@@ -575,6 +1006,19 @@ public class QBImporter {
             }
             return m;
         }
+
+        private static BufferedImage packImages(List<QBImage> images, boolean square, boolean maxRects,
+                List<Double> efficiency) {
+            int area = 0;
+            for (QBImage img : images) area += img.area();
+
+            BufferedImage img;
+            if (maxRects) img = MaxRectsPacker.toImage(MaxRectsPacker.pack(images, square), images);
+            else img = ImagePackNode.pack(images, square).toImage();
+
+            efficiency.add((double) area / (img.getWidth() * img.getHeight()));
+            return img;
+        }
     }
 
     public static class RasterisedModel {
@@ -592,6 +1036,10 @@ public class QBImporter {
 
         private Map<String, Holder> map = new HashMap<String, Holder>();
         private List<BufferedImage> images;
+        /**
+         * The fraction of each image covered by packed textures
+         */
+        public List<Double> packEfficiency = Collections.emptyList();
         private String[] icons;
 
         public RasterisedModel(List<BufferedImage> images) {
@@ -624,7 +1072,10 @@ public class QBImporter {
             ImageIO.write(img, "PNG", imgFile);
         }
 
-        public void export(File objFile, File imgDir) {
+        /**
+         * @return The files written, the obj file followed by the images
+         */
+        public List<File> export(File objFile, File imgDir) {
             try {
                 if (!objFile.exists()) objFile.createNewFile();
                 if (!imgDir.exists()) imgDir.mkdirs();
@@ -636,21 +1087,28 @@ public class QBImporter {
                 CCModel.exportObj(modelMap, p);
                 p.close();
 
-                if (images.size() < map.size())
-                    exportImg(images.get(0), new File(imgDir, objFile.getName().replaceAll("(.+)\\..+", "$1.png")));
-                else for (Map.Entry<String, Holder> e : map.entrySet())
-                    exportImg(images.get(e.getValue().img), new File(imgDir, e.getKey() + ".png"));
-
+                List<File> files = new ArrayList<File>();
+                files.add(objFile);
+                if (images.size() < map.size()) {
+                    File imgFile = new File(imgDir, objFile.getName().replaceAll("(.+)\\..+", "$1.png"));
+                    exportImg(images.get(0), imgFile);
+                    files.add(imgFile);
+                } else for (Map.Entry<String, Holder> e : map.entrySet()) {
+                    File imgFile = new File(imgDir, e.getKey() + ".png");
+                    exportImg(images.get(e.getValue().img), imgFile);
+                    files.add(imgFile);
+                }
+                return files;
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    private static String readAsciiString(DataInputStream din) throws IOException {
-        byte[] bytes = new byte[din.readByte() & 0xFF];
-        din.readFully(bytes);
-        return new String(bytes, "US-ASCII");
+    private static String readAsciiString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.get() & 0xFF];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
     }
 
     private static int readTni(DataInputStream din) throws IOException {
@@ -661,27 +1119,33 @@ public class QBImporter {
     private static final int NEXTSLICEFLAG = Integer.reverseBytes(6);
 
     public static QBModel loadQB(InputStream input) throws IOException {
-        DataInputStream din = new DataInputStream(input);
+        return loadQB(ByteBuffer.wrap(ByteStreams.toByteArray(input)));
+    }
+
+    /**
+     * Reads a model from the whole of buf, which is switched to little-endian order
+     */
+    public static QBModel loadQB(ByteBuffer buf) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
 
         QBModel m = new QBModel();
-        int version = din.readInt();
-        int colorFormat = din.readInt();
-        m.rightHanded = din.readInt() != 0;
-        boolean compressed = din.readInt() != 0;
-        boolean visEncoded = din.readInt() != 0;
+        int version = buf.getInt();
+        int colorFormat = buf.getInt();
+        m.rightHanded = buf.getInt() != 0;
+        boolean compressed = buf.getInt() != 0;
+        boolean visEncoded = buf.getInt() != 0;
 
         if (visEncoded) throw new IllegalArgumentException("Encoded Visiblity States not supported");
 
-        m.matrices = new QBMatrix[readTni(din)];
+        m.matrices = new QBMatrix[buf.getInt()];
         for (int i = 0; i < m.matrices.length; i++) {
             QBMatrix mat = new QBMatrix();
             m.matrices[i] = mat;
-            mat.name = readAsciiString(din);
-            mat.size = new BlockCoord(readTni(din), readTni(din), readTni(din));
-            mat.pos = new BlockCoord(readTni(din), readTni(din), readTni(din));
-            mat.matrix = new int[mat.size.x][mat.size.y][mat.size.z];
-            mat.readMatrix(din, compressed);
-            if (colorFormat == 1) mat.convertBGRAtoRGBA();
+            mat.name = readAsciiString(buf);
+            mat.size = new BlockCoord(buf.getInt(), buf.getInt(), buf.getInt());
+            mat.pos = new BlockCoord(buf.getInt(), buf.getInt(), buf.getInt());
+            mat.matrix = new int[mat.size.x * mat.size.y * mat.size.z];
+            mat.readMatrix(buf, compressed, colorFormat == 1);
         }
 
         return m;
@@ -699,7 +1163,11 @@ public class QBImporter {
         try {
             FileInputStream fin = new FileInputStream(file);
             try {
-                return loadQB(fin);
+                FileChannel channel = fin.getChannel();
+                ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+                while (buf.hasRemaining()) if (channel.read(buf) < 0) throw new EOFException();
+                buf.flip();
+                return loadQB(buf);
             } finally {
                 fin.close();
             }
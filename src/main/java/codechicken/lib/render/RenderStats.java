@@ -0,0 +1,236 @@
+package codechicken.lib.render;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import codechicken.lib.render.CCRenderState.IVertexOperation;
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+
+/**
+ * Hot path counters for a CCRenderState and its pipeline. Enabled with {@code -Dccl.renderStats=true}, when disabled
+ * every counter update is behind the constant {@link #ENABLED} and is removed by the JIT.
+ * <p>
+ * Operation timings are sampled about once every {@link #SAMPLE_INTERVAL} vertices
+ * ({@code -Dccl.renderStats.sampleInterval}), a whole batch at a time when batching, and scaled up in snapshots by the
+ * ratio of processed to sampled vertices so both paths report comparable totals. Counters are written without
+ * synchronization by the owning thread, so snapshots taken from other threads are approximate. Stats are held weakly,
+ * those of CCRenderStates that have been collected (eg. of finished threads) drop out of {@link #snapshotAll()}.
+ */
+public class RenderStats {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("ccl.renderStats", "false"));
+    public static final int SAMPLE_INTERVAL = Math.max(Integer.getInteger("ccl.renderStats.sampleInterval", 64), 1);
+
+    public enum RebuildReason {
+        /**
+         * A different model was bound
+         */
+        MODEL_CHANGED,
+        /**
+         * The operation list was replaced
+         */
+        PIPELINE_CHANGED,
+        /**
+         * CCRenderPipeline.rebuild() was called directly
+         */
+        EXPLICIT
+    }
+
+    private static final Set<RenderStats> all = Collections.newSetFromMap(new WeakHashMap<>());
+    private static volatile int frame;
+
+    static {
+        if (ENABLED) FMLCommonHandler.instance().bus().register(new FrameCounter());
+    }
+
+    public static class FrameCounter {
+
+        @SubscribeEvent
+        public void renderTick(TickEvent.RenderTickEvent event) {
+            if (event.phase == TickEvent.Phase.START) frame++;
+        }
+    }
+
+    /**
+     * An immutable copy of a set of counters
+     */
+    public static class Snapshot {
+
+        public final long verticesProcessed;
+        public final long modelsBound;
+        public final int modelsBoundLastFrame;
+        public final long rebuilds;
+        public final long fullBuilds;
+        public final Map<RebuildReason, Long> rebuildReasons;
+        /**
+         * Estimated cumulative nanoseconds per operation class name
+         */
+        public final Map<String, Long> operationNanos;
+
+        private Snapshot(long verticesProcessed, long modelsBound, int modelsBoundLastFrame, long fullBuilds,
+                long[] rebuilds, Map<String, Long> operationNanos) {
+            this.verticesProcessed = verticesProcessed;
+            this.modelsBound = modelsBound;
+            this.modelsBoundLastFrame = modelsBoundLastFrame;
+            this.fullBuilds = fullBuilds;
+
+            EnumMap<RebuildReason, Long> reasons = new EnumMap<>(RebuildReason.class);
+            long total = 0;
+            for (RebuildReason reason : RebuildReason.values()) {
+                reasons.put(reason, rebuilds[reason.ordinal()]);
+                total += rebuilds[reason.ordinal()];
+            }
+            this.rebuilds = total;
+            rebuildReasons = Collections.unmodifiableMap(reasons);
+            this.operationNanos = Collections.unmodifiableMap(operationNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "vertices: " + verticesProcessed
+                    + ", models: "
+                    + modelsBound
+                    + " ("
+                    + modelsBoundLastFrame
+                    + " last frame), rebuilds: "
+                    + rebuilds
+                    + " "
+                    + rebuildReasons
+                    + ", full builds: "
+                    + fullBuilds
+                    + ", operation ns: "
+                    + operationNanos;
+        }
+    }
+
+    private long vertices;
+    private long models;
+    private int modelFrame;
+    private int modelsThisFrame;
+    private int modelsLastFrame;
+    private final long[] rebuilds = new long[RebuildReason.values().length];
+    private long fullBuilds;
+    private int sampleCounter;
+    private long sampledVertices;
+    /**
+     * Keyed by class rather than operation ID, as every Transformation shares one ID
+     */
+    private final Map<Class<?>, long[]> opNanos = new ConcurrentHashMap<>();
+
+    public RenderStats() {
+        if (!ENABLED) return;
+        synchronized (all) {
+            all.add(this);
+        }
+    }
+
+    void addVertices(int count) {
+        if (count > 0) vertices += count;
+    }
+
+    void modelBound() {
+        rollFrame();
+        models++;
+        modelsThisFrame++;
+    }
+
+    void rebuild(RebuildReason reason) {
+        rebuilds[reason.ordinal()]++;
+    }
+
+    void fullBuild() {
+        fullBuilds++;
+    }
+
+    /**
+     * @param count The number of vertices the pipeline is about to run over
+     * @return True if this pipeline run should be timed
+     */
+    boolean sample(int count) {
+        sampleCounter += count;
+        if (sampleCounter < SAMPLE_INTERVAL) return false;
+        sampleCounter = 0;
+        sampledVertices += count;
+        return true;
+    }
+
+    void addOperationTime(IVertexOperation op, long nanos) {
+        long[] total = opNanos.get(op.getClass());
+        if (total == null) opNanos.put(op.getClass(), total = new long[1]);
+        total[0] += nanos;
+    }
+
+    private void rollFrame() {
+        int current = frame;
+        if (modelFrame == current) return;
+
+        modelsLastFrame = modelFrame == current - 1 ? modelsThisFrame : 0;
+        modelsThisFrame = 0;
+        modelFrame = current;
+    }
+
+    private int lastFrameModels() {
+        int current = frame;
+        if (modelFrame == current) return modelsLastFrame;
+        return modelFrame == current - 1 ? modelsThisFrame : 0;
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> ops = new LinkedHashMap<>();
+        addOperations(ops);
+        return new Snapshot(vertices, models, lastFrameModels(), fullBuilds, rebuilds.clone(), ops);
+    }
+
+    private void addOperations(Map<String, Long> ops) {
+        long sampled = sampledVertices;
+        double scale = sampled == 0 ? 0 : (double) Math.max(vertices, sampled) / sampled;
+        for (Map.Entry<Class<?>, long[]> e : opNanos.entrySet())
+            ops.merge(e.getKey().getName(), (long) (e.getValue()[0] * scale), Long::sum);
+    }
+
+    public void reset() {
+        vertices = models = fullBuilds = sampledVertices = 0;
+        modelsThisFrame = modelsLastFrame = sampleCounter = 0;
+        Arrays.fill(rebuilds, 0);
+        opNanos.clear();
+    }
+
+    /**
+     * @return The combined counters of every CCRenderState, across all threads
+     */
+    public static Snapshot snapshotAll() {
+        long vertices = 0, models = 0, fullBuilds = 0;
+        int lastFrame = 0;
+        long[] rebuilds = new long[RebuildReason.values().length];
+        Map<String, Long> ops = new LinkedHashMap<>();
+        for (RenderStats stats : live()) {
+            vertices += stats.vertices;
+            models += stats.models;
+            lastFrame += stats.lastFrameModels();
+            fullBuilds += stats.fullBuilds;
+            for (int i = 0; i < rebuilds.length; i++) rebuilds[i] += stats.rebuilds[i];
+            stats.addOperations(ops);
+        }
+        return new Snapshot(vertices, models, lastFrame, fullBuilds, rebuilds, ops);
+    }
+
+    public static void resetAll() {
+        for (RenderStats stats : live()) stats.reset();
+    }
+
+    private static List<RenderStats> live() {
+        synchronized (all) {
+            return new ArrayList<>(all);
+        }
+    }
+}
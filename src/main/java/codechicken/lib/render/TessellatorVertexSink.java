@@ -0,0 +1,41 @@
+package codechicken.lib.render;
+
+import net.minecraft.client.renderer.Tessellator;
+
+/**
+ * Default sink, writes to the global Tessellator
+ */
+public class TessellatorVertexSink implements IVertexSink {
+
+    public static final TessellatorVertexSink instance = new TessellatorVertexSink();
+
+    @Override
+    public void startDrawing(int mode) {
+        Tessellator.instance.startDrawing(mode);
+    }
+
+    @Override
+    public void setNormal(float x, float y, float z) {
+        Tessellator.instance.setNormal(x, y, z);
+    }
+
+    @Override
+    public void setColour(int colour) {
+        Tessellator.instance.setColorRGBA(colour >>> 24, colour >> 16 & 0xFF, colour >> 8 & 0xFF, colour & 0xFF);
+    }
+
+    @Override
+    public void setBrightness(int brightness) {
+        Tessellator.instance.setBrightness(brightness);
+    }
+
+    @Override
+    public void addVertex(double x, double y, double z, double u, double v) {
+        Tessellator.instance.addVertexWithUV(x, y, z, u, v);
+    }
+
+    @Override
+    public void draw() {
+        Tessellator.instance.draw();
+    }
+}
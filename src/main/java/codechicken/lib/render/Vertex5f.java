@@ -0,0 +1,72 @@
+package codechicken.lib.render;
+
+import codechicken.lib.render.uv.UV;
+import codechicken.lib.util.Copyable;
+import codechicken.lib.vec.Vector3f;
+
+/**
+ * Single precision counterpart of {@link Vertex5}, with the UV stored inline
+ */
+public class Vertex5f implements Copyable<Vertex5f> {
+
+    public Vector3f vec;
+    public float u;
+    public float v;
+    public int tex;
+
+    public Vertex5f() {
+        this(new Vector3f(), 0, 0, 0);
+    }
+
+    public Vertex5f(Vector3f vec, float u, float v, int tex) {
+        this.vec = vec;
+        this.u = u;
+        this.v = v;
+        this.tex = tex;
+    }
+
+    public Vertex5f(Vertex5f vert) {
+        this(vert.vec.copy(), vert.u, vert.v, vert.tex);
+    }
+
+    public Vertex5f(Vertex5 vert) {
+        this();
+        set(vert);
+    }
+
+    public Vertex5f set(float x, float y, float z, float u, float v) {
+        vec.set(x, y, z);
+        this.u = u;
+        this.v = v;
+        return this;
+    }
+
+    public Vertex5f set(Vertex5 vert) {
+        vec.set(vert.vec);
+        u = (float) vert.uv.u;
+        v = (float) vert.uv.v;
+        tex = vert.uv.tex;
+        return this;
+    }
+
+    public Vertex5 toVertex5() {
+        return new Vertex5(vec.toVector3(), new UV(u, v, tex));
+    }
+
+    public Vertex5f copy() {
+        return new Vertex5f(this);
+    }
+
+    /**
+     * @return A float copy of each vertex in verts
+     */
+    public static Vertex5f[] fromVertices(Vertex5[] verts) {
+        Vertex5f[] fverts = new Vertex5f[verts.length];
+        for (int i = 0; i < verts.length; i++) fverts[i] = new Vertex5f(verts[i]);
+        return fverts;
+    }
+
+    public String toString() {
+        return "Vertex5f: " + vec + " (" + u + ", " + v + ") (" + tex + ")";
+    }
+}
@@ -0,0 +1,211 @@
+package codechicken.lib.render;
+
+import java.util.Arrays;
+
+import codechicken.lib.lighting.LC;
+import codechicken.lib.render.uv.UV;
+import codechicken.lib.vec.Matrix4f;
+import codechicken.lib.vec.Vector3;
+
+/**
+ * Structure of arrays holding the pipeline state of a range of vertices, for use by
+ * {@link CCRenderState.IBatchVertexOperation}. Index i corresponds to model vertex {@code first + i}.
+ * <p>
+ * When {@link #floats} is set positions, UVs and normals are held in the float arrays (xf, uf, nxf...) instead of the
+ * double ones. Operations that access them directly must check the flag, or use the get/set helpers.
+ */
+public class VertexBatch {
+
+    public int first;
+    public int count;
+    public boolean floats;
+
+    public double[] x = new double[0];
+    public double[] y = new double[0];
+    public double[] z = new double[0];
+    public double[] u = new double[0];
+    public double[] v = new double[0];
+    public int[] tex = new int[0];
+
+    public double[] nx = new double[0];
+    public double[] ny = new double[0];
+    public double[] nz = new double[0];
+    public int[] colour = new int[0];
+    public int[] brightness = new int[0];
+    public int[] side = new int[0];
+    public LC[] lc = new LC[0];
+
+    public float[] xf = new float[0];
+    public float[] yf = new float[0];
+    public float[] zf = new float[0];
+    public float[] uf = new float[0];
+    public float[] vf = new float[0];
+    public float[] nxf = new float[0];
+    public float[] nyf = new float[0];
+    public float[] nzf = new float[0];
+
+    /**
+     * Scratch objects for operations that fall back to their object based apply methods
+     */
+    public final Vector3 vec = new Vector3();
+    public final UV uv = new UV();
+    /**
+     * Scratch matrix for double precision matrices applied to a float batch
+     */
+    public final Matrix4f mat = new Matrix4f();
+    /**
+     * The state rendering this batch, updated by {@link #select(int)}
+     */
+    CCRenderState state;
+
+    /**
+     * Grows the arrays used in the current precision mode to hold size vertices
+     */
+    public void ensureCapacity(int size) {
+        if (floats && xf.length < size) {
+            xf = Arrays.copyOf(xf, size);
+            yf = Arrays.copyOf(yf, size);
+            zf = Arrays.copyOf(zf, size);
+            uf = Arrays.copyOf(uf, size);
+            vf = Arrays.copyOf(vf, size);
+            nxf = Arrays.copyOf(nxf, size);
+            nyf = Arrays.copyOf(nyf, size);
+            nzf = Arrays.copyOf(nzf, size);
+        }
+        if (!floats && x.length < size) {
+            x = Arrays.copyOf(x, size);
+            y = Arrays.copyOf(y, size);
+            z = Arrays.copyOf(z, size);
+            u = Arrays.copyOf(u, size);
+            v = Arrays.copyOf(v, size);
+            nx = Arrays.copyOf(nx, size);
+            ny = Arrays.copyOf(ny, size);
+            nz = Arrays.copyOf(nz, size);
+        }
+        if (tex.length >= size) return;
+
+        tex = Arrays.copyOf(tex, size);
+        colour = Arrays.copyOf(colour, size);
+        brightness = Arrays.copyOf(brightness, size);
+        side = Arrays.copyOf(side, size);
+        int old = lc.length;
+        lc = Arrays.copyOf(lc, size);
+        for (int i = old; i < size; i++) lc[i] = new LC();
+    }
+
+    /**
+     * Sets vertexIndex and side of the rendering state to those of slot i. Operations that fall back to their per
+     * vertex apply methods call this first, as those methods may read the state of the current vertex
+     */
+    public void select(int i) {
+        if (state == null) return;
+        state.vertexIndex = first + i;
+        state.side = side[i];
+    }
+
+    /**
+     * Copies the vertex and the current per vertex outputs of state into slot i
+     */
+    public void load(int i, Vertex5 vert, CCRenderState state) {
+        if (floats) {
+            xf[i] = (float) vert.vec.x;
+            yf[i] = (float) vert.vec.y;
+            zf[i] = (float) vert.vec.z;
+            uf[i] = (float) vert.uv.u;
+            vf[i] = (float) vert.uv.v;
+        } else {
+            x[i] = vert.vec.x;
+            y[i] = vert.vec.y;
+            z[i] = vert.vec.z;
+            u[i] = vert.uv.u;
+            v[i] = vert.uv.v;
+        }
+        tex[i] = vert.uv.tex;
+        loadState(i, state);
+    }
+
+    /**
+     * Copies the vertex and the current per vertex outputs of state into slot i. Requires {@link #floats}
+     */
+    public void load(int i, Vertex5f vert, CCRenderState state) {
+        xf[i] = vert.vec.x;
+        yf[i] = vert.vec.y;
+        zf[i] = vert.vec.z;
+        uf[i] = vert.u;
+        vf[i] = vert.v;
+        tex[i] = vert.tex;
+        loadState(i, state);
+    }
+
+    /**
+     * Copies the current per vertex outputs of state into slot i, for sources that filled the vertex with
+     * {@link CCRenderState.IVertexSource#fillBatch(VertexBatch)}
+     */
+    public void loadState(int i, CCRenderState state) {
+        setNormal(i, state.normal);
+        colour[i] = state.colour;
+        brightness[i] = state.brightness;
+        side[i] = state.side;
+        lc[i].set(state.lc);
+    }
+
+    /**
+     * Copies slot i back into the per vertex outputs of state
+     */
+    public void store(int i, CCRenderState state) {
+        getPosition(i, state.vert.vec);
+        getUV(i, state.vert.uv);
+        getNormal(i, state.normal);
+        state.colour = colour[i];
+        state.brightness = brightness[i];
+        state.side = side[i];
+        state.lc.set(lc[i]);
+    }
+
+    public Vector3 getPosition(int i, Vector3 vec) {
+        return floats ? vec.set(xf[i], yf[i], zf[i]) : vec.set(x[i], y[i], z[i]);
+    }
+
+    public void setPosition(int i, Vector3 vec) {
+        if (floats) {
+            xf[i] = (float) vec.x;
+            yf[i] = (float) vec.y;
+            zf[i] = (float) vec.z;
+        } else {
+            x[i] = vec.x;
+            y[i] = vec.y;
+            z[i] = vec.z;
+        }
+    }
+
+    public Vector3 getNormal(int i, Vector3 vec) {
+        return floats ? vec.set(nxf[i], nyf[i], nzf[i]) : vec.set(nx[i], ny[i], nz[i]);
+    }
+
+    public void setNormal(int i, Vector3 vec) {
+        if (floats) {
+            nxf[i] = (float) vec.x;
+            nyf[i] = (float) vec.y;
+            nzf[i] = (float) vec.z;
+        } else {
+            nx[i] = vec.x;
+            ny[i] = vec.y;
+            nz[i] = vec.z;
+        }
+    }
+
+    public UV getUV(int i, UV uv) {
+        return floats ? uv.set(uf[i], vf[i], tex[i]) : uv.set(u[i], v[i], tex[i]);
+    }
+
+    public void setUV(int i, UV uv) {
+        if (floats) {
+            uf[i] = (float) uv.u;
+            vf[i] = (float) uv.v;
+        } else {
+            u[i] = uv.u;
+            v[i] = uv.v;
+        }
+        tex[i] = uv.tex;
+    }
+}
@@ -1,13 +1,14 @@
 package codechicken.lib.render.uv;
 
 import codechicken.lib.render.CCRenderState;
+import codechicken.lib.render.VertexBatch;
 import codechicken.lib.vec.ITransformation;
 
 /**
  * Abstract supertype for any UV transformation
  */
 public abstract class UVTransformation extends ITransformation<UV, UVTransformation>
-        implements CCRenderState.IVertexOperation {
+        implements CCRenderState.IBatchVertexOperation {
 
     public static final int operationIndex = CCRenderState.registerOperation();
 
@@ -32,6 +33,16 @@ public abstract class UVTransformation extends ITransformation<UV, UVTransformat
         apply(state.vert.uv);
     }
 
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        UV uv = batch.uv;
+        for (int i = 0; i < batch.count; i++) {
+            batch.select(i);
+            apply(batch.getUV(i, uv));
+            batch.setUV(i, uv);
+        }
+    }
+
     @Override
     public int operationID() {
         return operationIndex;
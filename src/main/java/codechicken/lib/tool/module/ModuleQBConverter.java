@@ -3,6 +3,24 @@ package codechicken.lib.tool.module;
 import static java.util.Arrays.asList;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 import codechicken.lib.render.QBImporter;
 import joptsimple.OptionParser;
@@ -10,6 +28,35 @@ import joptsimple.OptionSet;
 
 public class ModuleQBConverter extends JOptModule {
 
+    /**
+     * Stored in each output directory, maps input paths relative to the output directory to the hash of their content
+     * and flags when last converted, followed by the name and hash of each exported file
+     */
+    public static final String MANIFEST = "qbconverter.manifest";
+
+    private static class Job {
+
+        final File in;
+        final File outDir;
+        final int flags;
+        final String key;
+        String hash;
+        boolean skipped;
+        long time;
+        Throwable error;
+
+        Job(File in, File outDir, int flags) {
+            this.in = in;
+            this.outDir = outDir;
+            this.flags = flags;
+            key = manifestKey(in, outDir);
+        }
+
+        File objFile() {
+            return new File(outDir, in.getName().replace(".qb", ".obj"));
+        }
+    }
+
     public ModuleQBConverter() {
         parser.acceptsAll(asList("?", "h", "help"), "Show the help");
         parser.acceptsAll(asList("i", "input"), "comma separated list of paths to models (.qb or directories)")
@@ -21,6 +68,17 @@ public class ModuleQBConverter extends JOptModule {
         parser.acceptsAll(asList("s", "squaretextures"), "Produce square textures");
         parser.acceptsAll(asList("t", "mergetextures"), "Use the same texture for all models");
         parser.acceptsAll(asList("r", "scalemc"), "Resize model to mc standard (shrink by factor of 16)");
+        parser.acceptsAll(
+                asList("m", "maxrects"),
+                "Pack textures with MaxRects. Tighter than the default packer but lays textures out differently");
+        parser.acceptsAll(asList("j", "threads"), "Number of models to convert at once").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(1);
+        parser.acceptsAll(
+                asList("c", "incremental"),
+                "Skip models whose content, flags and exported files are unchanged since the last conversion, "
+                        + "tracked in "
+                        + MANIFEST
+                        + " in the output directory");
     }
 
     protected void main(OptionParser parser, OptionSet options) {
@@ -29,6 +87,10 @@ public class ModuleQBConverter extends JOptModule {
         if (options.has("s")) flags |= QBImporter.SQUARETEXTURE;
         if (options.has("t")) flags |= QBImporter.MERGETEXTURES;
         if (options.has("r")) flags |= QBImporter.SCALEMC;
+        if (options.has("m")) flags |= QBImporter.MAXRECTS;
+        int threads = (Integer) options.valueOf("threads");
+        if (threads < 1) throw new RuntimeException("Thread count must be positive: " + threads);
+        boolean incremental = options.has("incremental");
 
         File[] input = options.valuesOf("input").toArray(new File[0]);
         File[] outDir = new File[input.length];
@@ -43,19 +105,195 @@ public class ModuleQBConverter extends JOptModule {
                 outDir[i] = input[i].isDirectory() ? input[i] : input[i].getParentFile();
         }
 
+        List<Job> jobs = new ArrayList<Job>();
         for (int i = 0; i < input.length; i++) {
             File file = input[i];
             if (file.isDirectory()) {
                 for (File file2 : file.listFiles())
-                    if (file2.getName().endsWith(".qb")) convert(file2, outDir[i], flags);
-            } else convert(file, outDir[i], flags);
+                    if (file2.getName().endsWith(".qb")) jobs.add(new Job(file2, outDir[i], flags));
+            } else jobs.add(new Job(file, outDir[i], flags));
+        }
+
+        Map<File, Properties> manifests = new LinkedHashMap<File, Properties>();
+        if (incremental) for (Job job : jobs) if (!manifests.containsKey(job.outDir))
+            manifests.put(job.outDir, loadManifest(job.outDir));
+
+        long start = System.nanoTime();
+        run(jobs, threads, manifests);
+        long total = System.nanoTime() - start;
+
+        for (Map.Entry<File, Properties> e : manifests.entrySet()) saveManifest(e.getKey(), e.getValue());
+
+        printSummary(jobs, total);
+    }
+
+    private void run(List<Job> jobs, int threads, final Map<File, Properties> manifests) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Job job : jobs) futures.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    process(job, manifests.get(job.outDir));
+                }
+            }));
+
+            for (Future<?> f : futures) f.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param manifest The manifest of the job's output directory, null if not incremental
+     */
+    private void process(Job job, Properties manifest) {
+        long start = System.nanoTime();
+        try {
+            if (manifest != null) {
+                job.hash = Hashing.sha1().newHasher().putBytes(Files.toByteArray(job.in)).putInt(job.flags).hash()
+                        .toString();
+                if (isUpToDate(job, manifest.getProperty(job.key))) {
+                    job.skipped = true;
+                    System.out.println("Up to date: " + job.in.getName());
+                    return;
+                }
+            }
+
+            String entry = convert(job);
+            if (manifest != null) manifest.setProperty(job.key, entry);
+        } catch (Throwable t) {
+            job.error = t;
+            if (manifest != null) manifest.remove(job.key);
+            System.err.println("Failed to convert: " + job.in.getName());
+            t.printStackTrace();
+        } finally {
+            job.time = System.nanoTime() - start;
         }
     }
 
-    private void convert(File in, File outDir, int flags) {
-        System.out.println("Converting: " + in.getName());
-        QBImporter.RasterisedModel m = QBImporter.loadQB(in).toRasterisedModel(flags);
-        m.export(new File(outDir, in.getName().replace(".qb", ".obj")), outDir);
+    /**
+     * @param entry The manifest entry of job
+     * @return True if the input and flags match entry and every file exported last time is unchanged
+     */
+    private synchronized boolean isUpToDate(Job job, String entry) throws IOException {
+        if (entry == null) return false;
+
+        String[] parts = entry.split("\\|");
+        if (parts.length < 2 || !parts[0].equals(job.hash)) return false;
+
+        for (int i = 1; i < parts.length; i++) {
+            int sep = parts[i].lastIndexOf(':');
+            if (sep < 0) return false;
+
+            File file = new File(job.outDir, parts[i].substring(0, sep));
+            if (!file.isFile() || !hash(file).equals(parts[i].substring(sep + 1))) return false;
+        }
+        return true;
+    }
+
+    private static String hash(File file) throws IOException {
+        return Files.hash(file, Hashing.sha1()).toString();
+    }
+
+    /**
+     * @return The path of in relative to outDir, which is unique among the inputs sharing outDir's manifest
+     */
+    private static String manifestKey(File in, File outDir) {
+        Path inPath = in.getAbsoluteFile().toPath().normalize();
+        try {
+            return outDir.getAbsoluteFile().toPath().normalize().relativize(inPath).toString().replace('\\', '/');
+        } catch (IllegalArgumentException e) { // on another root
+            return inPath.toString().replace('\\', '/');
+        }
+    }
+
+    /**
+     * @return The manifest entry of job, null if not incremental
+     */
+    private String convert(Job job) throws IOException {
+        System.out.println("Converting: " + job.in.getName());
+        QBImporter.RasterisedModel m = QBImporter.loadQB(job.in).toRasterisedModel(job.flags);
+        StringBuilder packing = new StringBuilder("Texture packing efficiency: " + job.in.getName());
+        for (double e : m.packEfficiency) packing.append(String.format(" %.1f%%", e * 100));
+        System.out.println(packing);
+        // images are named after their matrix when not merged, so models sharing an output directory can overwrite each
+        // other's images. The lock only stops two exports writing the same file at once, the last export still wins.
+        // Incremental runs notice the overwritten image by its hash and convert the model again
+        synchronized (this) {
+            List<File> exported = m.export(job.objFile(), job.outDir);
+            if (job.hash == null) return null;
+
+            StringBuilder entry = new StringBuilder(job.hash);
+            for (File file : exported) entry.append('|').append(file.getName()).append(':').append(hash(file));
+            return entry.toString();
+        }
+    }
+
+    private static Properties loadManifest(File outDir) {
+        Properties manifest = new Properties();
+        File file = new File(outDir, MANIFEST);
+        if (!file.exists()) return manifest;
+
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                manifest.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read " + file.getPath() + ", converting everything");
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    private static void saveManifest(File outDir, Properties manifest) {
+        try {
+            OutputStream out = new FileOutputStream(new File(outDir, MANIFEST));
+            try {
+                manifest.store(out, "QBConverter input hashes");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void printSummary(List<Job> jobs, long total) {
+        int converted = 0, skipped = 0, failed = 0;
+        System.out.println();
+        System.out.println("Summary:");
+        for (Job job : jobs) {
+            String status;
+            if (job.error != null) {
+                status = "FAILED";
+                failed++;
+            } else if (job.skipped) {
+                status = "up to date";
+                skipped++;
+            } else {
+                status = "converted";
+                converted++;
+            }
+            System.out.println(String.format("  %8.1fms  %-10s %s", job.time / 1E6, status, job.in.getPath()));
+        }
+        System.out.println(
+                String.format(
+                        "%d converted, %d up to date, %d failed in %.1fms",
+                        converted,
+                        skipped,
+                        failed,
+                        total / 1E6));
+
+        if (failed > 0) throw new RuntimeException(failed + " models failed to convert");
     }
 
     @Override
@@ -9,6 +9,7 @@ import java.nio.DoubleBuffer;
 
 import org.lwjgl.opengl.GL11;
 
+import codechicken.lib.render.VertexBatch;
 import codechicken.lib.util.Copyable;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
@@ -300,6 +301,39 @@ public class Matrix4 extends Transformation implements Copyable<Matrix4> {
         vec.normalize();
     }
 
+    @Override
+    public void apply(VertexBatch batch, boolean normals) {
+        if (batch.floats) {
+            batch.mat.set(this).apply(batch, normals);
+            return;
+        }
+
+        double[] xs = batch.x, ys = batch.y, zs = batch.z;
+        for (int i = 0; i < batch.count; i++) {
+            double x = xs[i], y = ys[i], z = zs[i];
+            xs[i] = m00 * x + m01 * y + m02 * z + m03;
+            ys[i] = m10 * x + m11 * y + m12 * z + m13;
+            zs[i] = m20 * x + m21 * y + m22 * z + m23;
+        }
+        if (!normals) return;
+
+        xs = batch.nx;
+        ys = batch.ny;
+        zs = batch.nz;
+        for (int i = 0; i < batch.count; i++) {
+            double x = xs[i], y = ys[i], z = zs[i];
+            double nx = m00 * x + m01 * y + m02 * z;
+            double ny = m10 * x + m11 * y + m12 * z;
+            double nz = m20 * x + m21 * y + m22 * z;
+            double d = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (d != 0) d = 1 / d;
+            else d = 1;
+            xs[i] = nx * d;
+            ys[i] = ny * d;
+            zs[i] = nz * d;
+        }
+    }
+
     @Override
     public String toString() {
         MathContext cont = new MathContext(4, RoundingMode.HALF_UP);
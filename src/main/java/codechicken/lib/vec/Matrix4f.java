@@ -0,0 +1,235 @@
+package codechicken.lib.vec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.lwjgl.opengl.GL11;
+
+import codechicken.lib.render.VertexBatch;
+import codechicken.lib.util.Copyable;
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+/**
+ * Single precision counterpart of {@link Matrix4}. Build transforms with Matrix4 and convert once, then use this in
+ * pipelines that render with {@link codechicken.lib.render.CCRenderState#useFloats}.
+ */
+public class Matrix4f extends Transformation implements Copyable<Matrix4f> {
+
+    private static FloatBuffer glBuf = ByteBuffer.allocateDirect(16 * 4).order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+
+    // m<row><column>
+    public float m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23, m30, m31, m32, m33;
+
+    public Matrix4f() {
+        m00 = m11 = m22 = m33 = 1;
+    }
+
+    public Matrix4f(Matrix4f mat) {
+        set(mat);
+    }
+
+    public Matrix4f(Matrix4 mat) {
+        set(mat);
+    }
+
+    public Matrix4f setIdentity() {
+        m00 = m11 = m22 = m33 = 1;
+        m01 = m02 = m03 = m10 = m12 = m13 = m20 = m21 = m23 = m30 = m31 = m32 = 0;
+
+        return this;
+    }
+
+    public Matrix4f set(Matrix4f mat) {
+        m00 = mat.m00;
+        m01 = mat.m01;
+        m02 = mat.m02;
+        m03 = mat.m03;
+        m10 = mat.m10;
+        m11 = mat.m11;
+        m12 = mat.m12;
+        m13 = mat.m13;
+        m20 = mat.m20;
+        m21 = mat.m21;
+        m22 = mat.m22;
+        m23 = mat.m23;
+        m30 = mat.m30;
+        m31 = mat.m31;
+        m32 = mat.m32;
+        m33 = mat.m33;
+
+        return this;
+    }
+
+    public Matrix4f set(Matrix4 mat) {
+        m00 = (float) mat.m00;
+        m01 = (float) mat.m01;
+        m02 = (float) mat.m02;
+        m03 = (float) mat.m03;
+        m10 = (float) mat.m10;
+        m11 = (float) mat.m11;
+        m12 = (float) mat.m12;
+        m13 = (float) mat.m13;
+        m20 = (float) mat.m20;
+        m21 = (float) mat.m21;
+        m22 = (float) mat.m22;
+        m23 = (float) mat.m23;
+        m30 = (float) mat.m30;
+        m31 = (float) mat.m31;
+        m32 = (float) mat.m32;
+        m33 = (float) mat.m33;
+
+        return this;
+    }
+
+    public Matrix4 toMatrix4() {
+        return new Matrix4(
+                m00,
+                m01,
+                m02,
+                m03,
+                m10,
+                m11,
+                m12,
+                m13,
+                m20,
+                m21,
+                m22,
+                m23,
+                m30,
+                m31,
+                m32,
+                m33);
+    }
+
+    public Matrix4f copy() {
+        return new Matrix4f(this);
+    }
+
+    public Matrix4f multiply(Matrix4f mat) {
+        float n00 = m00 * mat.m00 + m01 * mat.m10 + m02 * mat.m20 + m03 * mat.m30;
+        float n01 = m00 * mat.m01 + m01 * mat.m11 + m02 * mat.m21 + m03 * mat.m31;
+        float n02 = m00 * mat.m02 + m01 * mat.m12 + m02 * mat.m22 + m03 * mat.m32;
+        float n03 = m00 * mat.m03 + m01 * mat.m13 + m02 * mat.m23 + m03 * mat.m33;
+        float n10 = m10 * mat.m00 + m11 * mat.m10 + m12 * mat.m20 + m13 * mat.m30;
+        float n11 = m10 * mat.m01 + m11 * mat.m11 + m12 * mat.m21 + m13 * mat.m31;
+        float n12 = m10 * mat.m02 + m11 * mat.m12 + m12 * mat.m22 + m13 * mat.m32;
+        float n13 = m10 * mat.m03 + m11 * mat.m13 + m12 * mat.m23 + m13 * mat.m33;
+        float n20 = m20 * mat.m00 + m21 * mat.m10 + m22 * mat.m20 + m23 * mat.m30;
+        float n21 = m20 * mat.m01 + m21 * mat.m11 + m22 * mat.m21 + m23 * mat.m31;
+        float n22 = m20 * mat.m02 + m21 * mat.m12 + m22 * mat.m22 + m23 * mat.m32;
+        float n23 = m20 * mat.m03 + m21 * mat.m13 + m22 * mat.m23 + m23 * mat.m33;
+        float n30 = m30 * mat.m00 + m31 * mat.m10 + m32 * mat.m20 + m33 * mat.m30;
+        float n31 = m30 * mat.m01 + m31 * mat.m11 + m32 * mat.m21 + m33 * mat.m31;
+        float n32 = m30 * mat.m02 + m31 * mat.m12 + m32 * mat.m22 + m33 * mat.m32;
+        float n33 = m30 * mat.m03 + m31 * mat.m13 + m32 * mat.m23 + m33 * mat.m33;
+
+        m00 = n00;
+        m01 = n01;
+        m02 = n02;
+        m03 = n03;
+        m10 = n10;
+        m11 = n11;
+        m12 = n12;
+        m13 = n13;
+        m20 = n20;
+        m21 = n21;
+        m22 = n22;
+        m23 = n23;
+        m30 = n30;
+        m31 = n31;
+        m32 = n32;
+        m33 = n33;
+
+        return this;
+    }
+
+    public void apply(Vector3f vec) {
+        float x = m00 * vec.x + m01 * vec.y + m02 * vec.z + m03;
+        float y = m10 * vec.x + m11 * vec.y + m12 * vec.z + m13;
+        float z = m20 * vec.x + m21 * vec.y + m22 * vec.z + m23;
+        vec.set(x, y, z);
+    }
+
+    public void applyN(Vector3f vec) {
+        float x = m00 * vec.x + m01 * vec.y + m02 * vec.z;
+        float y = m10 * vec.x + m11 * vec.y + m12 * vec.z;
+        float z = m20 * vec.x + m21 * vec.y + m22 * vec.z;
+        vec.set(x, y, z).normalize();
+    }
+
+    @Override
+    public void apply(Vector3 vec) {
+        double x = m00 * vec.x + m01 * vec.y + m02 * vec.z + m03;
+        double y = m10 * vec.x + m11 * vec.y + m12 * vec.z + m13;
+        double z = m20 * vec.x + m21 * vec.y + m22 * vec.z + m23;
+        vec.set(x, y, z);
+    }
+
+    @Override
+    public void applyN(Vector3 vec) {
+        double x = m00 * vec.x + m01 * vec.y + m02 * vec.z;
+        double y = m10 * vec.x + m11 * vec.y + m12 * vec.z;
+        double z = m20 * vec.x + m21 * vec.y + m22 * vec.z;
+        vec.set(x, y, z).normalize();
+    }
+
+    @Override
+    public void apply(Matrix4 mat) {
+        mat.multiply(toMatrix4());
+    }
+
+    @Override
+    public void apply(VertexBatch batch, boolean normals) {
+        if (!batch.floats) {
+            super.apply(batch, normals);
+            return;
+        }
+
+        float[] xs = batch.xf, ys = batch.yf, zs = batch.zf;
+        for (int i = 0; i < batch.count; i++) {
+            float x = xs[i], y = ys[i], z = zs[i];
+            xs[i] = m00 * x + m01 * y + m02 * z + m03;
+            ys[i] = m10 * x + m11 * y + m12 * z + m13;
+            zs[i] = m20 * x + m21 * y + m22 * z + m23;
+        }
+        if (!normals) return;
+
+        xs = batch.nxf;
+        ys = batch.nyf;
+        zs = batch.nzf;
+        for (int i = 0; i < batch.count; i++) {
+            float x = xs[i], y = ys[i], z = zs[i];
+            float nx = m00 * x + m01 * y + m02 * z;
+            float ny = m10 * x + m11 * y + m12 * z;
+            float nz = m20 * x + m21 * y + m22 * z;
+            float d = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (d != 0) d = 1 / d;
+            else d = 1;
+            xs[i] = nx * d;
+            ys[i] = ny * d;
+            zs[i] = nz * d;
+        }
+    }
+
+    @Override
+    @SideOnly(Side.CLIENT)
+    public void glApply() {
+        glBuf.put(m00).put(m10).put(m20).put(m30).put(m01).put(m11).put(m21).put(m31).put(m02).put(m12).put(m22)
+                .put(m32).put(m03).put(m13).put(m23).put(m33);
+        glBuf.flip();
+        GL11.glMultMatrix(glBuf);
+    }
+
+    @Override
+    public Transformation inverse() {
+        throw new IrreversibleTransformationException(this);
+    }
+
+    @Override
+    public String toString() {
+        return toMatrix4().toString();
+    }
+}
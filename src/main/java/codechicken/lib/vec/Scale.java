@@ -6,6 +6,8 @@ import java.math.RoundingMode;
 
 import org.lwjgl.opengl.GL11;
 
+import codechicken.lib.render.VertexBatch;
+
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 
@@ -33,6 +35,26 @@ public class Scale extends Transformation {
     @Override
     public void applyN(Vector3 normal) {}
 
+    @Override
+    public void apply(VertexBatch batch, boolean normals) {
+        if (batch.floats) {
+            float fx = (float) factor.x, fy = (float) factor.y, fz = (float) factor.z;
+            for (int i = 0; i < batch.count; i++) {
+                batch.xf[i] *= fx;
+                batch.yf[i] *= fy;
+                batch.zf[i] *= fz;
+            }
+            return;
+        }
+
+        double fx = factor.x, fy = factor.y, fz = factor.z;
+        for (int i = 0; i < batch.count; i++) {
+            batch.x[i] *= fx;
+            batch.y[i] *= fy;
+            batch.z[i] *= fz;
+        }
+    }
+
     @Override
     public void apply(Matrix4 mat) {
         mat.scale(factor);
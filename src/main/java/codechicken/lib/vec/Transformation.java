@@ -1,6 +1,7 @@
 package codechicken.lib.vec;
 
 import codechicken.lib.render.CCRenderState;
+import codechicken.lib.render.VertexBatch;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 
@@ -8,7 +9,7 @@ import cpw.mods.fml.relauncher.SideOnly;
  * Abstract supertype for any 3D vector transformation
  */
 public abstract class Transformation extends ITransformation<Vector3, Transformation>
-        implements CCRenderState.IVertexOperation {
+        implements CCRenderState.IBatchVertexOperation {
 
     public static final int operationIndex = CCRenderState.registerOperation();
 
@@ -46,7 +47,29 @@ public abstract class Transformation extends ITransformation<Vector3, Transforma
     @Override
     public void operate(CCRenderState state) {
         apply(state.vert.vec);
-        if (CCRenderState.normalAttrib.active) applyN(state.normal);
+        if (CCRenderState.normalAttrib.isActive(state)) applyN(state.normal);
+    }
+
+    @Override
+    public void operateBatch(CCRenderState state, VertexBatch batch) {
+        apply(batch, CCRenderState.normalAttrib.isActive(state));
+    }
+
+    /**
+     * Applies this transformation to every position in batch, and to every normal if normals is set
+     */
+    public void apply(VertexBatch batch, boolean normals) {
+        Vector3 vec = batch.vec;
+        for (int i = 0; i < batch.count; i++) {
+            batch.select(i);
+            apply(batch.getPosition(i, vec));
+            batch.setPosition(i, vec);
+        }
+        if (normals) for (int i = 0; i < batch.count; i++) {
+            batch.select(i);
+            applyN(batch.getNormal(i, vec));
+            batch.setNormal(i, vec);
+        }
     }
 
     @Override
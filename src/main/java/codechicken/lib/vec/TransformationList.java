@@ -3,6 +3,7 @@ package codechicken.lib.vec;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import codechicken.lib.render.VertexBatch;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 
@@ -50,6 +51,12 @@ public class TransformationList extends Transformation {
         else for (int i = 0; i < transformations.size(); i++) transformations.get(i).applyN(normal);
     }
 
+    @Override
+    public void apply(VertexBatch batch, boolean normals) {
+        if (mat != null) mat.apply(batch, normals);
+        else for (int i = 0; i < transformations.size(); i++) transformations.get(i).apply(batch, normals);
+    }
+
     @Override
     public void apply(Matrix4 mat) {
         mat.multiply(compile());
@@ -0,0 +1,152 @@
+package codechicken.lib.vec;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+import codechicken.lib.util.Copyable;
+
+/**
+ * Single precision counterpart of {@link Vector3} for render data, where output is float anyway and the halved size
+ * matters more than the precision.
+ */
+public class Vector3f implements Copyable<Vector3f> {
+
+    public float x;
+    public float y;
+    public float z;
+
+    public Vector3f() {}
+
+    public Vector3f(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public Vector3f(Vector3f vec) {
+        x = vec.x;
+        y = vec.y;
+        z = vec.z;
+    }
+
+    public Vector3f(Vector3 vec) {
+        set(vec);
+    }
+
+    public Vector3f copy() {
+        return new Vector3f(this);
+    }
+
+    public Vector3f set(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    public Vector3f set(Vector3f vec) {
+        x = vec.x;
+        y = vec.y;
+        z = vec.z;
+        return this;
+    }
+
+    public Vector3f set(Vector3 vec) {
+        x = (float) vec.x;
+        y = (float) vec.y;
+        z = (float) vec.z;
+        return this;
+    }
+
+    public Vector3 toVector3() {
+        return new Vector3(x, y, z);
+    }
+
+    /**
+     * Writes this vector into vec
+     *
+     * @return vec
+     */
+    public Vector3 toVector3(Vector3 vec) {
+        return vec.set(x, y, z);
+    }
+
+    public Vector3f add(float x, float y, float z) {
+        this.x += x;
+        this.y += y;
+        this.z += z;
+        return this;
+    }
+
+    public Vector3f add(Vector3f vec) {
+        return add(vec.x, vec.y, vec.z);
+    }
+
+    public Vector3f subtract(Vector3f vec) {
+        return add(-vec.x, -vec.y, -vec.z);
+    }
+
+    public Vector3f multiply(float f) {
+        x *= f;
+        y *= f;
+        z *= f;
+        return this;
+    }
+
+    public float dotProduct(Vector3f vec) {
+        return x * vec.x + y * vec.y + z * vec.z;
+    }
+
+    public Vector3f crossProduct(Vector3f vec) {
+        float d = y * vec.z - z * vec.y;
+        float d1 = z * vec.x - x * vec.z;
+        float d2 = x * vec.y - y * vec.x;
+        x = d;
+        y = d1;
+        z = d2;
+        return this;
+    }
+
+    public float mag() {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    public float magSquared() {
+        return x * x + y * y + z * z;
+    }
+
+    public Vector3f normalize() {
+        float d = mag();
+        if (d != 0) multiply(1 / d);
+
+        return this;
+    }
+
+    public Vector3f apply(Matrix4f mat) {
+        mat.apply(this);
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Vector3f)) return false;
+        Vector3f v = (Vector3f) o;
+        return x == v.x && y == v.y && z == v.z;
+    }
+
+    @Override
+    public int hashCode() {
+        return (Float.floatToIntBits(x) * 31 + Float.floatToIntBits(y)) * 31 + Float.floatToIntBits(z);
+    }
+
+    public String toString() {
+        MathContext cont = new MathContext(4, RoundingMode.HALF_UP);
+        return "Vector3f(" + new BigDecimal(x, cont)
+                + ", "
+                + new BigDecimal(y, cont)
+                + ", "
+                + new BigDecimal(z, cont)
+                + ")";
+    }
+}